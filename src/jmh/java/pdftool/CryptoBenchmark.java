@@ -0,0 +1,104 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Encrypt and decrypt the streams of a document, the megabytes per second grow with threads. */
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+
+  @Param({"40", "128", "256"})
+  public int keyLength;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  private File dir, input, encrypted;
+  private PDDocument doc;
+
+  /** The size of the encrypted file, counted for every encrypted or decrypted document. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Megabytes {
+    public double megabytes;
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = SyntheticDocuments.createTempDir();
+    input = SyntheticDocuments.createPDF(dir, "input", 100, 4);
+    encrypted = new File(dir, "encrypted.pdf");
+    try (PDDocument doc = PDDocument.load(input)) {
+      protect(doc);
+      doc.save(encrypted);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void loadInput() throws IOException {
+    // Loading the input is not part of the encryption
+    doc = PDDocument.load(input);
+    protect(doc);
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeInput() throws IOException {
+    doc.close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticDocuments.delete(dir);
+  }
+
+  @Benchmark
+  public void encrypt(Megabytes megabytes) throws IOException {
+    StreamCrypto.save(
+        doc, new NullOutputStream(), threads, MemoryUsageSetting.setupMainMemoryOnly());
+    megabytes.megabytes += encrypted.length() / 1e6;
+  }
+
+  @Benchmark
+  public void decrypt(Megabytes megabytes) throws IOException {
+    PDDocument decrypted =
+        StreamCrypto.load(
+            new RandomAccessBufferedFileInputStream(encrypted),
+            "password",
+            new ScratchFile(MemoryUsageSetting.setupMainMemoryOnly()),
+            MemoryUsageSetting.setupMainMemoryOnly(),
+            threads);
+    decrypted.close();
+    megabytes.megabytes += encrypted.length() / 1e6;
+  }
+
+  private void protect(PDDocument doc) throws IOException {
+    StandardProtectionPolicy policy =
+        new StandardProtectionPolicy("password", "password", new AccessPermission());
+    policy.setEncryptionKeyLength(keyLength);
+    StreamCrypto.protect(doc, policy);
+  }
+
+  private static class NullOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
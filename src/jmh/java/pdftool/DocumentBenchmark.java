@@ -0,0 +1,84 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Load, change and save a whole document with the page based operations. */
+@State(Scope.Benchmark)
+public class DocumentBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int pageNumber;
+
+  @Param({"0", "4"})
+  public int imagesPerPage;
+
+  private File dir, input, encrypted, output;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = SyntheticDocuments.createTempDir();
+    input = SyntheticDocuments.createPDF(dir, "input", pageNumber, imagesPerPage);
+    encrypted = new File(dir, "encrypted.pdf");
+    PDFOperation.encryptPDF(input, encrypted, "password", 256);
+    output = new File(dir, "output.pdf");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticDocuments.delete(dir);
+  }
+
+  @Benchmark
+  public void rotate() throws IOException {
+    PDFOperation.rotatePDF(input, 90, output);
+  }
+
+  @Benchmark
+  public void encrypt() throws IOException {
+    PDFOperation.encryptPDF(input, output, "password", 256);
+  }
+
+  @Benchmark
+  public void decrypt() throws IOException {
+    PDFOperation.decryptPDF(new InputFile(encrypted, "password").load(), output.getPath());
+  }
+
+  @Benchmark
+  public void split() throws IOException {
+    PDFOperation.splitPDF(
+        input, "1-" + (pageNumber / 2) + "," + (pageNumber / 2 + 1) + "-", output);
+  }
+
+  @Benchmark
+  public void splitSinglePages() throws IOException {
+    PDFOperation.splitPDF(input, singlePageRanges(), output);
+  }
+
+  @Benchmark
+  public void removeHalfPages() throws IOException {
+    PDFOperation.removePages(input, output, evenPages());
+  }
+
+  private String singlePageRanges() {
+    StringBuilder ranges = new StringBuilder("1");
+    for (int i = 2; i <= pageNumber; i++) {
+      ranges.append(',').append(i);
+    }
+    return ranges.toString();
+  }
+
+  private int[] evenPages() {
+    int[] pages = new int[pageNumber / 2];
+    for (int i = 0; i < pages.length; i++) {
+      pages[i] = (i + 1) * 2;
+    }
+    return pages;
+  }
+}
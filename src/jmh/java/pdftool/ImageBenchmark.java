@@ -0,0 +1,66 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Render pages to images and convert image files to a PDF file. */
+@State(Scope.Benchmark)
+public class ImageBenchmark {
+
+  @Param({"1", "20"})
+  public int pageNumber;
+
+  @Param({"0", "8"})
+  public int imagesPerPage;
+
+  @Param({"72", "300"})
+  public int dpi;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File dir, input, output;
+  private File[] pngImages, jpegImages;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = SyntheticDocuments.createTempDir();
+    input = SyntheticDocuments.createPDF(dir, "input", pageNumber, imagesPerPage);
+    pngImages = SyntheticDocuments.createImages(dir, pageNumber, "png");
+    jpegImages = SyntheticDocuments.createImages(dir, pageNumber, "jpg");
+    output = new File(dir, "output");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticDocuments.delete(dir);
+  }
+
+  @Benchmark
+  public void pdfToPNG() throws IOException {
+    PDFOperation.pdfToImage(
+        new InputFile(input, null), output.getPath(), "png", dpi, false, threads);
+  }
+
+  @Benchmark
+  public void pdfToZippedJPEG() throws IOException {
+    PDFOperation.pdfToImage(
+        new InputFile(input, null), output.getPath(), "jpg", dpi, true, threads);
+  }
+
+  @Benchmark
+  public void pngToPDF() throws IOException {
+    PDFOperation.imageToPDF(output.getPath() + ".pdf", threads, pngImages);
+  }
+
+  @Benchmark
+  public void jpegToPDF() throws IOException {
+    PDFOperation.imageToPDF(output.getPath() + ".pdf", threads, jpegImages);
+  }
+}
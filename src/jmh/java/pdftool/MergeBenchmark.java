@@ -0,0 +1,44 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Merge time should grow linearly with the number of inputs. */
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+  @Param({"2", "10", "50", "200"})
+  public int inputNumber;
+
+  @Param({"0", "2"})
+  public int imagesPerPage;
+
+  private File dir, output;
+  private File[] inputs;
+
+  @Setup
+  public void setUp() throws IOException {
+    dir = SyntheticDocuments.createTempDir();
+    inputs = new File[inputNumber];
+    for (int i = 0; i < inputNumber; i++) {
+      inputs[i] = SyntheticDocuments.createPDF(dir, "input" + (i + 1), 3, imagesPerPage);
+    }
+    output = new File(dir, "output.pdf");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticDocuments.delete(dir);
+  }
+
+  @Benchmark
+  public void merge() throws IOException {
+    PDFOperation.mergePDF(output, inputs);
+  }
+}
@@ -0,0 +1,108 @@
+package pdftool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/** Generates the PDF and image files the benchmarks run against. */
+public class SyntheticDocuments {
+
+  private static final int IMAGE_SIZE = 256;
+
+  /**
+   * Creates a PDF file with some text on every page and the given number of distinct images per
+   * page, half of them JPEG and half lossless.
+   */
+  public static File createPDF(File dir, String name, int pageNumber, int imagesPerPage)
+      throws IOException {
+    File file = new File(dir, name + ".pdf");
+    Random random = new Random(pageNumber * 31L + imagesPerPage);
+
+    try (PDDocument doc = new PDDocument()) {
+      for (int i = 0; i < pageNumber; i++) {
+        PDPage page = new PDPage(PDRectangle.A4);
+        doc.addPage(page);
+
+        try (PDPageContentStream contentStream = new PDPageContentStream(doc, page)) {
+          contentStream.beginText();
+          contentStream.setFont(PDType1Font.HELVETICA, 12);
+          contentStream.newLineAtOffset(50, 780);
+          for (int line = 0; line < 40; line++) {
+            contentStream.showText(
+                "Page " + (i + 1) + ", line " + (line + 1) + ": " + random.nextLong());
+            contentStream.newLineAtOffset(0, -14);
+          }
+          contentStream.endText();
+
+          for (int j = 0; j < imagesPerPage; j++) {
+            BufferedImage image = createImage(random);
+            PDImageXObject xObject =
+                (j % 2 == 0)
+                    ? JPEGFactory.createFromImage(doc, image)
+                    : LosslessFactory.createFromImage(doc, image);
+            contentStream.drawImage(xObject, 50 + (j % 4) * 120, 50 + (j / 4) * 120, 100, 100);
+          }
+        }
+      }
+
+      doc.save(file);
+    }
+
+    return file;
+  }
+
+  public static File[] createImages(File dir, int imageNumber, String format) throws IOException {
+    File[] files = new File[imageNumber];
+    Random random = new Random(imageNumber);
+
+    for (int i = 0; i < imageNumber; i++) {
+      files[i] = new File(dir, "image" + (i + 1) + "." + format);
+      ImageIO.write(createImage(random), format, files[i]);
+    }
+
+    return files;
+  }
+
+  private static BufferedImage createImage(Random random) {
+    BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+
+    for (int i = 0; i < 50; i++) {
+      g.setColor(new Color(random.nextInt(0xFFFFFF)));
+      g.fillOval(
+          random.nextInt(IMAGE_SIZE),
+          random.nextInt(IMAGE_SIZE),
+          random.nextInt(80),
+          random.nextInt(80));
+    }
+    g.dispose();
+
+    return image;
+  }
+
+  public static File createTempDir() throws IOException {
+    return Files.createTempDirectory("pdftool-jmh").toFile();
+  }
+
+  public static void delete(File dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package pdftool;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.pdfbox.rendering.ImageType;
+
+/**
+ * Runs the operations of {@link PDFOperation} on an executor and returns CompletableFutures of
+ * their results. The operations print nothing and report their pages and objects to a listener.
+ * Cancelling a future, e.g. after a timeout, stops its operation at the next page or object, and
+ * the documents it loaded from InputFiles are closed. An operation that isn't started yet doesn't
+ * start at all.
+ */
+public class AsyncPDFOperation {
+
+  /** An operation to run, usually calls of PDFOperation with documents loaded from InputFiles. */
+  public interface Operation<T> {
+    T run() throws Exception;
+  }
+
+  private final Executor executor;
+
+  public AsyncPDFOperation(Executor executor) {
+    this.executor = executor;
+  }
+
+  public <T> CompletableFuture<T> submit(Operation<T> operation, ProgressListener listener) {
+    Progress.Job job = new Progress.Job(listener);
+    CompletableFuture<T> future = new CompletableFuture<>();
+
+    // Cancelling the future doesn't reach the operation, so the job stops it
+    future.whenComplete(
+        (result, e) -> {
+          if (future.isCancelled()) {
+            job.cancel();
+          }
+        });
+
+    try {
+      executor.execute(
+          () -> {
+            if (future.isDone()) {
+              return;
+            }
+
+            try {
+              future.complete(job.run(operation::run));
+            } catch (Throwable e) {
+              // The operations wrap the exceptions of their threads, so a cancelled job can end
+              // with any of them
+              future.completeExceptionally(
+                  job.isCancelled() ? new CancellationException("The operation was cancelled") : e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+
+    return future;
+  }
+
+  public CompletableFuture<Void> rotate(
+      InputFile input, int degree, String outputFile, ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.rotatePDF(input.load(), degree, outputFile);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> decrypt(
+      InputFile input, String outputFile, ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.decryptPDF(input.load(), outputFile);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> encrypt(
+      InputFile input,
+      String outputFile,
+      String password,
+      int keyLength,
+      String[] permissions,
+      ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.encryptPDF(input.load(), outputFile, password, keyLength, permissions);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> removePages(
+      InputFile input, String ranges, String outputFile, ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.removePages(input.load(), outputFile, ranges);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> split(
+      InputFile input, String ranges, String outputFile, int threads, ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.splitPDF(input.load(), ranges, outputFile, threads);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> merge(
+      String outputFile, ProgressListener listener, InputFile... inputs) {
+    return submit(
+        () -> {
+          PDFOperation.mergePDF(outputFile, inputs);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> extractImages(
+      InputFile input,
+      String outputFile,
+      String format,
+      int dpi,
+      boolean isZip,
+      int threads,
+      ImageEncoder imageEncoder,
+      ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.extractImages(
+              input.load(), outputFile, format, dpi, isZip, threads, imageEncoder);
+          return null;
+        },
+        listener);
+  }
+
+  public CompletableFuture<Void> pdfToImage(
+      InputFile input,
+      String outputFile,
+      String format,
+      int dpi,
+      ImageType imageType,
+      boolean isZip,
+      int threads,
+      ImageEncoder imageEncoder,
+      ProgressListener listener) {
+    return submit(
+        () -> {
+          PDFOperation.pdfToImage(
+              input, outputFile, format, dpi, imageType, isZip, threads, null, imageEncoder);
+          return null;
+        },
+        listener);
+  }
+
+  /** Renders the thumbnail of the first page, the cache can be null. */
+  public CompletableFuture<BufferedImage> thumbnail(
+      InputFile input, int size, DiskCache cache, ProgressListener listener) {
+    input.setLazy(true);
+    return submit(() -> new Thumbnails(cache).getThumbnail(input, size), listener);
+  }
+
+  public CompletableFuture<Void> run(
+      PDFPipeline pipeline, InputFile input, String outputFile, ProgressListener listener) {
+    return submit(
+        () -> {
+          pipeline.run(input, outputFile);
+          return null;
+        },
+        listener);
+  }
+}
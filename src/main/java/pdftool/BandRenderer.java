@@ -0,0 +1,122 @@
+package pdftool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.RenderDestination;
+
+/**
+ * Renders a page in bands of rows and writes every band to a PNG file before the next one is
+ * rendered, so the heap only holds one band instead of the whole page. An A0 page needs about
+ * 400 MB at 300 dpi as one image. Every band draws the whole page again, so higher bands are
+ * faster and lower bands use less memory. GRAY and BINARY pages are rendered on bands of their own
+ * type, like PageRaster and PDFRenderer.renderImage do, so they produce the same pixels.
+ */
+public class BandRenderer {
+
+  private final PDFRenderer renderer;
+  private final int bandHeight;
+  private final ImageType imageType;
+  private final PngEncoder encoder;
+  private BufferedImage band, transparentBand;
+
+  /** The image type can be RGB, GRAY or BINARY. */
+  public BandRenderer(
+      PDFRenderer renderer, int bandHeight, ImageType imageType, PngEncoder encoder) {
+    this.renderer = renderer;
+    this.bandHeight = bandHeight;
+    this.imageType = imageType;
+    this.encoder = encoder;
+  }
+
+  public void render(PDPage page, int pageIndex, int dpi, OutputStream out) throws IOException {
+    long startTime = System.nanoTime();
+    int[] size = PageRaster.getSize(page, dpi);
+    int width = size[0], height = size[1];
+
+    boolean isRGB = imageType == ImageType.RGB;
+    boolean isBinary = imageType == ImageType.BINARY;
+    // Blend modes are rendered on a transparent band first, like renderImage does
+    boolean hasBlendMode = PageRaster.hasBlendMode(page);
+
+    PngEncoder.Rows rows =
+        encoder.start(
+            out,
+            width,
+            height,
+            isRGB ? PngEncoder.COLOR_RGB : PngEncoder.COLOR_GRAY,
+            isBinary ? 1 : 8);
+    int[] pixels = new int[width];
+    // Lower bands start one row higher, because shapes without anti-aliasing can get a
+    // different first row when they are clipped at the edge of the image
+    int bandImageHeight = bandHeight + 1;
+
+    for (int top = 0; top < height; top += bandHeight) {
+      int rowNumber = Math.min(bandHeight, height - top);
+      int overlap = (top == 0) ? 0 : 1;
+      band =
+          PageRaster.reuse(
+              band, width, bandImageHeight, PageRaster.toBufferedImageType(imageType));
+
+      if (hasBlendMode) {
+        transparentBand =
+            PageRaster.reuse(
+                transparentBand, width, bandImageHeight, BufferedImage.TYPE_INT_ARGB);
+        drawBand(transparentBand, new Color(0, 0, 0, 0), pageIndex, dpi, top - overlap);
+
+        Graphics2D g = band.createGraphics();
+        g.drawImage(transparentBand, 0, 0, Color.WHITE, null);
+        g.dispose();
+      } else {
+        drawBand(band, Color.WHITE, pageIndex, dpi, top - overlap);
+      }
+
+      Raster raster = band.getRaster();
+      for (int y = 0; y < rowNumber; y++) {
+        byte[] row = rows.row();
+
+        if (isRGB) {
+          raster.getDataElements(0, y + overlap, width, 1, pixels);
+          PngEncoder.toBytes(pixels, width, false, row);
+        } else {
+          raster.getSamples(0, y + overlap, width, 1, 0, pixels);
+          for (int x = 0; x < width; x++) {
+            if (!isBinary) {
+              row[x] = (byte) pixels[x];
+            } else if (pixels[x] != 0) {
+              // The sample is the index into the black and white palette
+              row[x >> 3] |= (byte) (0x80 >> (x & 7));
+            }
+          }
+        }
+
+        rows.write();
+      }
+
+      Metrics.count("rendered_bands", 1);
+    }
+
+    rows.finish();
+    Metrics.timer("render_page").stop(startTime);
+  }
+
+  private void drawBand(BufferedImage image, Color background, int pageIndex, int dpi, int top)
+      throws IOException {
+    Graphics2D g = image.createGraphics();
+    try {
+      g.setBackground(background);
+      g.clearRect(0, 0, image.getWidth(), image.getHeight());
+      // The page is moved up, so the band shows its rows from the top of the band on
+      g.translate(0, -top);
+      renderer.renderPageToGraphics(pageIndex, g, dpi / 72f, dpi / 72f, RenderDestination.EXPORT);
+    } finally {
+      g.dispose();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package pdftool;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(
+    name = "PDFTool batch",
+    synopsisHeading = "",
+    customSynopsis =
+        "%nUsage: PDFTool batch --manifest MANIFEST_FILE --results RESULT_FILE [--workers WORKERS]"
+            + " [--metrics METRICS_FILE]%n",
+    description =
+        "Run every job of the manifest in one process. "
+            + "Every line of the manifest is a JSON job, e.g.%n"
+            + "  {\"id\": \"job1\", \"operation\": \"rotate\", \"argument\": \"90\", "
+            + "\"inputs\": [\"in.pdf\"], \"output\": \"out.pdf\"}%n"
+            + "  {\"id\": \"job2\", \"operation\": \"set-password\", \"argument\": \"secret\", "
+            + "\"inputs\": [\"in.pdf\"], \"output\": \"out.pdf\", "
+            + "\"params\": {\"set-key-length\": 128}}%n"
+            + "The operation and params use the long option names of PDFTool.%n",
+    footer =
+        "%nExamples: %n  PDFTool batch --manifest jobs.jsonl --results results.jsonl --workers 8",
+    sortOptions = false,
+    mixinStandardHelpOptions = true,
+    version = "PDFTool 1.0")
+public class BatchMode implements Runnable {
+
+  @Option(
+      names = {"--manifest"},
+      required = true,
+      paramLabel = "MANIFEST_FILE",
+      description = "JSON lines file with one job per line.")
+  private File manifest;
+
+  @Option(
+      names = {"--results"},
+      required = true,
+      paramLabel = "RESULT_FILE",
+      description = "JSON lines file the result and timing of every job is written to.")
+  private File results;
+
+  @Option(
+      names = {"--workers"},
+      paramLabel = "WORKERS",
+      description = "Number of jobs run at the same time. The default is the number of processors.")
+  private int workers = Runtime.getRuntime().availableProcessors();
+
+  @Option(
+      names = {"--metrics"},
+      paramLabel = "METRICS_FILE",
+      description =
+          "Write the metrics of all jobs to the file, in the Prometheus text format if it ends "
+              + "with '.prom', otherwise as JSON.")
+  private File metricsFile;
+
+  private final Gson gson = new Gson();
+
+  @Override
+  public void run() {
+    try {
+      runManifest();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void runManifest() throws Exception {
+    if (workers < 1) {
+      throw new Exception("Invalid worker number. You need to use at least one worker!");
+    }
+
+    List<String> jobs = new ArrayList<>();
+    try (BufferedReader reader =
+        Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (!line.trim().isEmpty()) {
+          jobs.add(line);
+        }
+      }
+    }
+
+    long startTime = System.nanoTime();
+    AtomicInteger failedJobs = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+    try (PrintWriter writer =
+        new PrintWriter(Files.newBufferedWriter(results.toPath(), StandardCharsets.UTF_8))) {
+      for (int i = 0; i < jobs.size(); i++) {
+        String job = jobs.get(i);
+        String defaultId = String.valueOf(i + 1);
+
+        executor.execute(
+            () -> {
+              Map<String, Object> result = runJob(job, defaultId);
+              if (!result.get("status").equals("OK")) {
+                failedJobs.incrementAndGet();
+              }
+
+              synchronized (writer) {
+                writer.println(gson.toJson(result));
+                writer.flush();
+              }
+            });
+      }
+
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.println(
+        String.format(
+            "Finished %d jobs (%d failed) in %.2f s (%.1f jobs/s)",
+            jobs.size(), failedJobs.get(), seconds, jobs.size() / seconds));
+
+    if (metricsFile != null) {
+      Metrics.write(metricsFile);
+    }
+  }
+
+  private Map<String, Object> runJob(String job, String defaultId) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("id", defaultId);
+    long startTime = System.nanoTime();
+
+    // One broken job must not stop the others, so every failure ends up in its result, even an
+    // OutOfMemoryError of a single job
+    try {
+      JsonObject json = JsonParser.parseString(job).getAsJsonObject();
+      if (json.has("id")) {
+        result.put("id", json.get("id").getAsString());
+      }
+
+      CLIMode.execute(toArguments(json));
+      result.put("status", "OK");
+    } catch (Throwable e) {
+      result.put("status", "ERROR");
+      result.put("error", (e.getMessage() == null) ? e.toString() : e.getMessage());
+    }
+
+    result.put("millis", (System.nanoTime() - startTime) / 1000000);
+    return result;
+  }
+
+  private static String[] toArguments(JsonObject json) throws Exception {
+    List<String> args = new ArrayList<>();
+
+    if (!json.has("operation") || !json.has("inputs") || !json.has("output")) {
+      throw new Exception("A job needs 'operation', 'inputs' and 'output'.");
+    }
+
+    args.add("--" + json.get("operation").getAsString());
+    if (json.has("argument")) {
+      JsonElement argument = json.get("argument");
+      if (argument.isJsonArray()) {
+        for (JsonElement value : argument.getAsJsonArray()) {
+          args.add(value.getAsString());
+        }
+      } else {
+        args.add(argument.getAsString());
+      }
+    }
+
+    if (json.has("params")) {
+      for (Map.Entry<String, JsonElement> param : json.getAsJsonObject("params").entrySet()) {
+        JsonElement value = param.getValue();
+
+        // A boolean param is a flag like 'compress-images'
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+          if (value.getAsBoolean()) {
+            args.add("--" + param.getKey());
+          }
+        } else {
+          args.add("--" + param.getKey());
+          args.add(value.getAsString());
+        }
+      }
+    }
+
+    JsonArray inputs = json.getAsJsonArray("inputs");
+    args.add("-i");
+    for (JsonElement input : inputs) {
+      args.add(input.getAsString());
+    }
+
+    args.add("-o");
+    args.add(json.get("output").getAsString());
+
+    return args.toArray(new String[] {});
+  }
+}
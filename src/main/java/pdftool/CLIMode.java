@@ -1,11 +1,13 @@
 package pdftool;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import javax.imageio.ImageIO;
-import org.apache.pdfbox.pdmodel.PDDocument;
+import java.util.Map;
+import org.apache.pdfbox.rendering.ImageType;
+import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
@@ -18,11 +20,18 @@ import picocli.CommandLine.Option;
         "%nExamples: %n  PDFTool -d -i /path/to/file.pdf -o /path/to/save.pdf"
             + "%n  PDFTool -e PNG -i /path/to/file.pdf -o /path/to/save"
             + "%n  PDFTool -l MODIFY PRINT -i /path/to/file.pdf -o /path/to/save.pdf"
-            + "%n  PDFTool -s 1-3,5,6 -i /path/to/file.pdf -o /path/to/save.pdf",
+            + "%n  PDFTool -s 1-3,5,6 -i /path/to/file.pdf -o /path/to/save.pdf"
+            + "%n  PDFTool -r 90 --jobs 4 -i /path/to/dir -o /path/to/rotated"
+            + "%n  PDFTool --thumbnail 128 --cache-dir /path/to/cache -i /path/to/*.pdf "
+            + "-o /path/to/thumbnails"
+            + "%n  PDFTool -m --incremental -i /path/to/big.pdf /path/to/more.pdf "
+            + "-o /path/to/big.pdf"
+            + "%n  PDFTool --step decrypt --step remove-pages=2 --step rotate=90 "
+            + "--step set-password=secret -i /path/to/file.pdf:password -o /path/to/save.pdf",
     sortOptions = false,
     mixinStandardHelpOptions = true,
     version = "PDFTool 1.0")
-public class CLIMode implements Runnable {
+public class CLIMode implements Runnable, Cloneable {
 
   @Option(
       names = {"-c", "--compress-images"},
@@ -39,7 +48,11 @@ public class CLIMode implements Runnable {
   @Option(
       names = {"-e", "--extract-images"},
       paramLabel = "FORMAT",
-      description = "Extract the images in the PDF file. " + "FORMAT can be PNG, JPEG or GIF.")
+      description =
+          "Extract the images in the PDF file. "
+              + "FORMAT can be PNG, JPEG, GIF or RAW. "
+              + "JPEG images are copied without decoding when FORMAT is JPEG or RAW. "
+              + "RAW also copies JPEG 2000 images and writes the other images as PNG.")
   private String extractImagesFormat;
 
   @Option(
@@ -47,6 +60,13 @@ public class CLIMode implements Runnable {
       description = "Merge the PDF files sequentially with the given files.")
   private boolean isMerge;
 
+  @Option(
+      names = {"--dedup"},
+      description =
+          "Share identical fonts, images and colour profiles of the merged files before saving. "
+              + "The option must be used with 'merge' option.")
+  private boolean isDedup;
+
   @Option(
       names = {"-p", "--set-password"},
       paramLabel = "PASSWORD",
@@ -73,9 +93,10 @@ public class CLIMode implements Runnable {
       arity = "1..*",
       paramLabel = "RANGE",
       description =
-          "Remove single page of the PDF file. "
-              + "If you have more than one page removed, use comma to split them. "
-              + "E.g.,'1,3,5' will remove Page 1, Page 3 and Page 5.")
+          "Remove pages of the PDF file with the given ranges. "
+              + "The ranges are the same as the 'split' option, in any order. "
+              + "E.g.,'1,3,5' will remove Page 1, Page 3 and Page 5, "
+              + "and '1-100,250,900-' will remove Page 1 to 100, Page 250 and Page 900 to the end.")
   private String removeRanges;
 
   @Option(
@@ -84,6 +105,24 @@ public class CLIMode implements Runnable {
       description = "Rotate the PDF clockwise with the given degree.")
   private int degree;
 
+  @Option(
+      names = {"--incremental"},
+      description =
+          "Only append the changes to the PDF file instead of writing it again. "
+              + "With the merge option, the pages of the other files are appended to the first "
+              + "file, and the first file is updated itself if it is also the output file. "
+              + "The option must be used with 'rotate' or 'merge' option.")
+  private boolean isIncremental;
+
+  @Option(
+      names = {"--linearize"},
+      description =
+          "Write linearized PDF files (Fast Web View), so viewers can show the first page "
+              + "before the whole file is downloaded. The option must be used with 'd', 'm', "
+              + "'R', 'r', 's', 'step' or 'T' option, and can not be used with 'incremental' "
+              + "option.")
+  private boolean isLinearized;
+
   @Option(
       names = {"-s", "--split"},
       arity = "1..*",
@@ -94,6 +133,25 @@ public class CLIMode implements Runnable {
               + "You can use more than one range by using comma as separator. E.g., 1-3,5-6,4.")
   private String splitRange;
 
+  @Option(
+      names = {"--step"},
+      paramLabel = "STEP",
+      description =
+          "Apply the steps in the given order to the PDF file and save it once. "
+              + "STEP can be 'decrypt', 'remove-pages=RANGE', 'rotate=DEGREE', "
+              + "'set-password=PASSWORD' or 'limit-permission=PERMISSION,...'. "
+              + "Use the option once for each step.")
+  private String[] steps;
+
+  @Option(
+      names = {"--thumbnail"},
+      paramLabel = "SIZE",
+      description =
+          "Create a PNG thumbnail of the first page of every PDF file in the output directory, "
+              + "with SIZE pixels as the longer side. The thumbnail embedded in the file is used "
+              + "if there is one.")
+  private int thumbnailSize;
+
   @Option(
       names = {"-T", "--convert-images-to-pdf"},
       description = "Convert images to one PDF file sequentially.")
@@ -114,6 +172,137 @@ public class CLIMode implements Runnable {
           "Set the images' dpi. The default is 300. " + "The option must be used with '-t' option.")
   private int dpi;
 
+  @Option(
+      names = {"--image-type"},
+      paramLabel = "TYPE",
+      description =
+          "Set the colours of the images. TYPE can be RGB, GRAY or BINARY, which is black and "
+              + "white. The default is RGB. The option must be used with '-t' option.")
+  private String imageType;
+
+  @Option(
+      names = {"--band-height"},
+      paramLabel = "ROWS",
+      description =
+          "Render every page in bands of ROWS pixel rows, which are written to the PNG file one "
+              + "after the other, so huge pages at high dpi fit into the heap. Every band draws "
+              + "the whole page, so higher bands are faster. The option must be used with '-t PNG' "
+              + "and can not be used with 'compress-images', 'threads' or 'cache-dir' option.")
+  private int bandHeight;
+
+  @Option(
+      names = {"--png-compression"},
+      paramLabel = "LEVEL",
+      description =
+          "Set the compression level of PNG images from 0 (fastest) to 9 (smallest). "
+              + "The default is 4. The option must be used with 'extract-images' or "
+              + "'convert-to-images' option.")
+  private Integer pngLevel;
+
+  @Option(
+      names = {"--png-filter"},
+      paramLabel = "FILTER",
+      description =
+          "Set the row filter of PNG images. FILTER can be NONE, SUB, UP, AVERAGE, PAETH or "
+              + "ADAPTIVE, which chooses the filter of every row. The default is ADAPTIVE. "
+              + "The option must be used with 'extract-images' or 'convert-to-images' option.")
+  private String pngFilter;
+
+  @Option(
+      names = {"--jpeg-quality"},
+      paramLabel = "QUALITY",
+      description =
+          "Set the quality of JPEG images from 1 to 100. The default is 75. "
+              + "The option must be used with 'extract-images' or 'convert-to-images' option.")
+  private int jpegQuality;
+
+  @Option(
+      names = {"--threads"},
+      paramLabel = "THREADS",
+      description =
+          "Set the number of threads used to render pages, encode images, save split files or "
+              + "decrypt and encrypt streams. The default is 1. The option must be used with "
+              + "'extract-images', 'convert-to-images', 'convert-images-to-pdf', 'split', "
+              + "'decrypt', 'set-password', 'limit-permission', 'step' or 'thumbnail' option.")
+  private int threads;
+
+  @Option(
+      names = {"--jobs"},
+      paramLabel = "JOBS",
+      description =
+          "Set the number of PDF files handled at the same time when the input is more than one "
+              + "file, a directory or a pattern like '/path/to/*.pdf'. The output is then a "
+              + "directory. The default is the number of processors. No new file is started "
+              + "while the heap is almost full.")
+  private int jobs;
+
+  @Option(
+      names = {"--max-memory"},
+      paramLabel = "SIZE",
+      description =
+          "Set the heap memory all opened PDF files can use together, e.g. 512M or 2G. "
+              + "Anything above it is kept in scratch files.")
+  private String maxMemory;
+
+  @Option(
+      names = {"--max-document-memory"},
+      paramLabel = "SIZE",
+      description =
+          "Set the heap memory every opened PDF file can use, e.g. 512M or 2G. "
+              + "Anything above it is kept in scratch files.")
+  private String maxDocumentMemory;
+
+  @Option(
+      names = {"--scratch-dir"},
+      paramLabel = "DIRECTORY",
+      description =
+          "Directory of the scratch files. The default is the system temporary directory.")
+  private File scratchDir;
+
+  @Option(
+      names = {"--cache-dir"},
+      paramLabel = "DIRECTORY",
+      description =
+          "Keep the results in the directory and copy them from there when the same operation "
+              + "runs on the same content again. Pages converted to images are kept one by one, "
+              + "so only the missing pages are rendered. "
+              + "The option can not be used with 'extract-images' option.")
+  private File cacheDir;
+
+  @Option(
+      names = {"--cache-size"},
+      paramLabel = "SIZE",
+      description =
+          "Set the disk space of the cache, e.g. 512M or 2G. The default is 256M. "
+              + "The results used longest ago are deleted first.")
+  private String cacheSize;
+
+  @Option(
+      names = {"-v", "--verbose"},
+      description = "Print every page, image or file while it is handled.")
+  private boolean isVerbose;
+
+  @Option(
+      names = {"--metrics"},
+      paramLabel = "METRICS_FILE",
+      description =
+          "Write the load, operation and save time, the render and encode time of every page or "
+              + "image, the bytes read and written and the peak heap to the file. "
+              + "The file is in the Prometheus text format if it ends with '.prom', "
+              + "otherwise it is JSON.")
+  private File metricsFile;
+
+  @Option(
+      names = {"--mmap"},
+      description =
+          "Read the PDF file through memory maps instead of heap buffers. "
+              + "Parsed streams are still copied into the scratch buffers, so only 'split' "
+              + "saves heap, as it only parses the pages it reaches. 'extract-images' and "
+              + "'convert-to-images' copy every stream; use 'max-document-memory' to keep them "
+              + "off the heap. The option must be used with 'extract-images', "
+              + "'convert-to-images' or 'split' option.")
+  private boolean isMapped;
+
   @Option(
       names = {"-i", "--input-file"},
       required = true,
@@ -121,6 +310,9 @@ public class CLIMode implements Runnable {
       paramLabel = "INPUT_FILE",
       description =
           "Input PDF or image file. If you use the merge option, you need to input more than one file. "
+              + "A directory means every PDF file in it, and a pattern like '/path/to/*.pdf' or "
+              + "'/path/to/**.pdf' every PDF file matching it. Every file is handled on its own "
+              + "when the operation only uses one file. "
               + "If the file needs password, then add the password behind the file with colon seperated."
               + "E.g., File.pdf:Password. If you use the 'convert-images-to-pdf' option, you need to input image file.")
   private String[] inputFiles;
@@ -132,22 +324,18 @@ public class CLIMode implements Runnable {
       description = "Output file.")
   private String outputFile;
 
+  private MemoryBudget memoryBudget = MemoryBudget.unlimited();
+  private DiskCache cache;
+  private ResultCache resultCache;
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+
   @Override
   public void run() {
     try {
-      checkOptionConflict();
-
-      if (isConvertImagesToPDF) {
-        // Convert images to PDF
-        BufferedImage[] images = loadImages();
-        PDFOperation.imageToPDF(outputFile, images);
-      } else {
-        PDDocument[] docs = loadPDFs();
-        checkInputfileNumberValid(docs);
-        doPDFOperation(docs);
-      }
-
-      System.out.println("Finished!");
+      execute();
     } catch (Exception e) {
       String platform = System.getProperty("os.name").toLowerCase();
 
@@ -158,7 +346,69 @@ public class CLIMode implements Runnable {
         // "[0m");
       }
       e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  public static void execute(String[] args) throws Exception {
+    CLIMode cli = new CLIMode();
+    new CommandLine(cli).parseArgs(args);
+    cli.execute();
+  }
+
+  public void execute() throws Exception {
+    checkOptionConflict();
+    checkMemoryBudget();
+    int failedFiles = 0;
+    MemoryBudget.startJob();
+    try {
+      Progress.setVerbose(isVerbose);
+      long startTime = System.nanoTime();
+
+      cache = openCache();
+      resultCache = (cache == null) ? null : new ResultCache(cache);
+
+      if (isConvertImagesToPDF) {
+        // Convert images to PDF
+        // Read images on the calling thread for default
+        threads = (threads == 0) ? 1 : threads;
+
+        if (threads < 0) {
+          throw new Exception("Invalid thread number. You need to use at least one thread!");
+        }
+
+        File[] images = loadImages();
+        String key =
+            (resultCache == null) ? null : resultCache.key("convert-images-to-pdf", images);
+        runCached(key, outputFiles(), () -> PDFOperation.imageToPDF(outputFile, threads, images));
+      } else {
+        InputFile[] inputs = parseInputFiles();
+
+        if (isFileBatch(inputs)) {
+          failedFiles = doPDFOperationForEachFile(inputs);
+        } else {
+          doPDFOperation(inputs);
+        }
+      }
+
+      Metrics.timer("job").stop(startTime);
+
+      if (memoryBudget.isLimited()) {
+        memoryBudget.report();
+      }
+
+      if (metricsFile != null) {
+        Metrics.write(metricsFile);
+      }
+    } finally {
+      MemoryBudget.finishJob();
     }
+
+    if (failedFiles > 0) {
+      throw new Exception(failedFiles + " of the input files failed.");
+    }
+
+    System.out.println("Finished!");
   }
 
   private void checkOptionConflict() throws Exception {
@@ -196,6 +446,14 @@ public class CLIMode implements Runnable {
       options.add("s");
     }
 
+    if (steps != null) {
+      options.add("step");
+    }
+
+    if (thumbnailSize != 0) {
+      options.add("thumbnail");
+    }
+
     if (isConvertImagesToPDF) {
       options.add("T");
     }
@@ -205,17 +463,92 @@ public class CLIMode implements Runnable {
     }
 
     if (options.isEmpty()) {
-      throw new Exception("You must use one option of 'd''e''m''p''l''R''r''s''T''t'.");
+      throw new Exception(
+          "You must use one option of 'd''e''m''p''l''R''r''s''step''thumbnail''T''t'.");
 
     } else if (options.size() == 1) {
-      if (keyLength != 0 && !options.get(0).equals("p")) {
-        throw new Exception("Option 'set-key-length' needs to be used with Option 'p'.");
+      if (keyLength != 0 && !(options.get(0).equals("p") || options.get(0).equals("step"))) {
+        throw new Exception("Option 'set-key-length' needs to be used with Option 'p' or 'step'.");
 
       } else if (dpi != 0 && !options.get(0).equals("t")) {
         throw new Exception("Option 'set-dpi' needs to be used with Option 't'.");
 
+      } else if (threads != 0
+          && !(options.get(0).equals("d")
+              || options.get(0).equals("e")
+              || options.get(0).equals("l")
+              || options.get(0).equals("p")
+              || options.get(0).equals("t")
+              || options.get(0).equals("T")
+              || options.get(0).equals("s")
+              || options.get(0).equals("step")
+              || options.get(0).equals("thumbnail"))) {
+        throw new Exception(
+            "Option 'threads' needs to be used with Option 'd', 'e', 'l', 'p', 's', 'step', 'T', "
+                + "'t' or 'thumbnail'.");
+
       } else if (isZip && !(options.get(0).equals("e") || options.get(0).equals("t"))) {
         throw new Exception("Option 'compress-images' needs to be used with Option 'e' or 't'.");
+
+      } else if ((imageType != null || bandHeight != 0) && !options.get(0).equals("t")) {
+        throw new Exception(
+            "Option 'image-type' and 'band-height' need to be used with Option 't'.");
+
+      } else if (bandHeight != 0 && (isZip || threads != 0 || cacheDir != null)) {
+        throw new Exception(
+            "Option 'band-height' can not be used with Option 'compress-images', 'threads' or "
+                + "'cache-dir'.");
+
+      } else if ((pngLevel != null || pngFilter != null || jpegQuality != 0)
+          && !(options.get(0).equals("e") || options.get(0).equals("t"))) {
+        throw new Exception(
+            "Option 'png-compression', 'png-filter' and 'jpeg-quality' need to be used with "
+                + "Option 'e' or 't'.");
+
+      } else if (isIncremental && !(options.get(0).equals("r") || options.get(0).equals("m"))) {
+        throw new Exception("Option 'incremental' needs to be used with Option 'r' or 'm'.");
+
+      } else if (isLinearized
+          && !(options.get(0).equals("d")
+              || options.get(0).equals("m")
+              || options.get(0).equals("R")
+              || options.get(0).equals("r")
+              || options.get(0).equals("s")
+              || options.get(0).equals("step")
+              || options.get(0).equals("T"))) {
+        throw new Exception(
+            "Option 'linearize' needs to be used with Option 'd', 'm', 'R', 'r', 's', 'step' or "
+                + "'T'.");
+
+      } else if (isLinearized && isIncremental) {
+        throw new Exception("Option 'linearize' can not be used with Option 'incremental'.");
+
+      } else if (isLinearized && steps != null && hasEncryptingStep(steps)) {
+        // The linearizer reads the saved file again, which it can't do once it is encrypted
+        throw new Exception(
+            "Option 'linearize' can not be used with the steps 'set-password' and "
+                + "'limit-permission'.");
+
+      } else if (isMapped
+          && !(options.get(0).equals("e")
+              || options.get(0).equals("t")
+              || options.get(0).equals("s"))) {
+        throw new Exception("Option 'mmap' needs to be used with Option 'e', 's' or 't'.");
+
+      } else if (isDedup && !options.get(0).equals("m")) {
+        throw new Exception("Option 'dedup' needs to be used with Option 'm'.");
+
+      } else if ((cacheDir != null || cacheSize != null) && options.get(0).equals("e")) {
+        throw new Exception("Option 'cache-dir' and 'cache-size' can not be used with Option 'e'.");
+
+      } else if (jobs != 0
+          && (options.get(0).equals("m")
+              || options.get(0).equals("T")
+              || options.get(0).equals("thumbnail"))) {
+        throw new Exception("Option 'jobs' can not be used with Option 'm', 'T' or 'thumbnail'.");
+
+      } else if (isDedup && isIncremental) {
+        throw new Exception("Option 'dedup' can not be used with Option 'incremental'.");
       }
 
     } else {
@@ -229,51 +562,205 @@ public class CLIMode implements Runnable {
     }
   }
 
-  private PDDocument[] loadPDFs() throws Exception {
-    List<PDDocument> PDFs = new ArrayList<>();
+  private static boolean hasEncryptingStep(String[] steps) {
+    for (String step : steps) {
+      if (step.startsWith("set-password=") || step.startsWith("limit-permission=")) {
+        return true;
+      }
+    }
 
-    for (String inputFile : inputFiles) {
-      if (inputFile.contains(":")) {
-        int index = inputFile.indexOf(':');
+    return false;
+  }
+
+  private void checkMemoryBudget() throws Exception {
+    try {
+      long processBytes = (maxMemory == null) ? -1 : MemoryBudget.parseSize(maxMemory);
+      long documentBytes =
+          (maxDocumentMemory == null) ? -1 : MemoryBudget.parseSize(maxDocumentMemory);
+      memoryBudget = new MemoryBudget(processBytes, documentBytes, scratchDir);
+    } catch (NumberFormatException e) {
+      throw new Exception("Invalid memory size. You can use a number with K, M or G, e.g. 512M!");
+    }
 
-        // Extract the file name and password
-        String file = inputFile.substring(0, index);
-        String password = inputFile.substring(index + 1);
+    if (scratchDir != null && !scratchDir.isDirectory()) {
+      throw new Exception("'" + scratchDir + "' isn't a directory.");
+    }
+  }
 
-        if (!isPDFFile(file)) {
-          throw new Exception("'" + inputFile + "' isn't PDF file.");
-        }
+  /** Runs the operation, or copies its output from the cache if it was run before. */
+  private void runCached(String key, List<File> outputs, Operation operation) throws Exception {
+    if (resultCache == null) {
+      runLinearized(outputs, operation);
+      return;
+    }
 
-        PDFs.add(PDDocument.load(new File(file), password));
-      } else {
-        if (!isPDFFile(inputFile)) {
-          throw new Exception("'" + inputFile + "' isn't PDF file.");
+    if (isLinearized) {
+      key += " linearized";
+    }
+
+    if (resultCache.restore(key, outputs)) {
+      System.out.println("Copied the result from the cache");
+      return;
+    }
+
+    runLinearized(outputs, operation);
+    resultCache.store(key, outputs);
+  }
+
+  /** Runs the operation, then writes its output files again linearized if asked to. */
+  private void runLinearized(List<File> outputs, Operation operation) throws Exception {
+    operation.run();
+
+    if (isLinearized) {
+      for (File output : outputs) {
+        Linearizer.linearize(output, memoryBudget.getSetting(Math.max(jobs, 1)));
+      }
+    }
+  }
+
+  private void runCached(
+      String operationName, InputFile[] inputs, List<File> outputs, Operation operation)
+      throws Exception {
+    String key = (resultCache == null) ? null : resultCache.key(operationName, inputs);
+    runCached(key, outputs, operation);
+  }
+
+  private List<File> outputFiles() {
+    List<File> outputs = new ArrayList<>();
+    outputs.add(new File(outputFile));
+    return outputs;
+  }
+
+  private DiskCache openCache() throws Exception {
+    if (cacheDir == null) {
+      return null;
+    }
+
+    try {
+      long bytes = (cacheSize == null) ? 256L * 1024 * 1024 : MemoryBudget.parseSize(cacheSize);
+      return new DiskCache(cacheDir, bytes);
+    } catch (NumberFormatException e) {
+      throw new Exception("Invalid cache size. You can use a number with K, M or G, e.g. 512M!");
+    }
+  }
+
+  private ImageType parseImageType() throws Exception {
+    // RGB for default
+    String type = (imageType == null) ? "rgb" : imageType.toLowerCase();
+
+    if (type.equals("rgb")) {
+      return ImageType.RGB;
+    } else if (type.equals("gray") || type.equals("grey")) {
+      return ImageType.GRAY;
+    } else if (type.equals("binary")) {
+      return ImageType.BINARY;
+    }
+
+    throw new Exception("Invalid image type. You can only use RGB, GRAY and BINARY!");
+  }
+
+  private ImageEncoder createImageEncoder() throws Exception {
+    // PNG level use 4 for default, the same as ImageIO
+    int level = (pngLevel == null) ? 4 : pngLevel;
+    // JPEG quality use 75 for default, the same as ImageIO
+    int quality = (jpegQuality == 0) ? 75 : jpegQuality;
+    PngEncoder.Filter filter;
+
+    if (level < 0 || level > 9) {
+      throw new Exception("Invalid PNG compression level. You can only use 0 to 9!");
+    }
+
+    if (quality < 1 || quality > 100) {
+      throw new Exception("Invalid JPEG quality. You can only use 1 to 100!");
+    }
+
+    try {
+      filter =
+          (pngFilter == null)
+              ? PngEncoder.Filter.ADAPTIVE
+              : PngEncoder.Filter.valueOf(pngFilter.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new Exception(
+          "Invalid PNG filter. You can only use NONE, SUB, UP, AVERAGE, PAETH and ADAPTIVE!");
+    }
+
+    return new ImageEncoder(level, filter, quality);
+  }
+
+  /** Decrypts the streams of the input and encrypts the streams of the output on the threads. */
+  private void setCryptThreads(InputFile input) throws Exception {
+    // Decrypt and encrypt on the calling thread for default
+    threads = (threads == 0) ? 1 : threads;
+
+    if (threads < 0) {
+      throw new Exception("Invalid thread number. You need to use at least one thread!");
+    }
+
+    input.setDecryptThreads(threads);
+  }
+
+  private InputFile[] parseInputFiles() throws Exception {
+    List<InputFile> inputs = new ArrayList<>();
+
+    for (String inputFile : inputFiles) {
+      List<InputFile> files = InputFile.expand(inputFile);
+
+      if (files.isEmpty()) {
+        throw new Exception("There is no PDF file in '" + inputFile + "'.");
+      }
+
+      for (InputFile input : files) {
+        if (!isPDFFile(input.getFile().getPath())) {
+          throw new Exception("'" + input.getFile() + "' isn't PDF file.");
         }
 
-        PDFs.add(PDDocument.load(new File(inputFile)));
+        inputs.add(input);
       }
     }
 
-    return PDFs.toArray(new PDDocument[] {});
+    // Files handled on their own use the processors for default
+    jobs = (jobs == 0) ? Runtime.getRuntime().availableProcessors() : jobs;
+
+    if (jobs < 0) {
+      throw new Exception("Invalid job number. You need to use at least one job!");
+    }
+
+    // Merge keeps the output and one input open, parallel rendering one copy per thread
+    int documentNumber = isMerge ? 2 : Math.max(threads, 1);
+    if (isFileBatch(inputs.toArray(new InputFile[] {}))) {
+      documentNumber *= jobs;
+    }
+
+    // Split, remove pages and thumbnails only read the pages they reach
+    boolean isLazy = splitRange != null || removeRanges != null || thumbnailSize != 0;
+
+    for (InputFile input : inputs) {
+      input.setMemoryUsage(memoryBudget.getSetting(documentNumber));
+      input.setMapped(isMapped);
+      input.setLazy(isLazy);
+    }
+
+    return inputs.toArray(new InputFile[] {});
   }
 
-  private BufferedImage[] loadImages() throws Exception {
-    List<BufferedImage> images = new ArrayList<>();
+  private File[] loadImages() throws Exception {
+    List<File> images = new ArrayList<>();
 
     for (String inputFile : inputFiles) {
-      if (!(inputFile.endsWith(".png")
-          || inputFile.endsWith(".jpg")
-          || inputFile.endsWith(".jpeg")
-          || inputFile.endsWith(".gif")
-          || inputFile.endsWith(".tif")
-          || inputFile.endsWith(".tiff")
-          || inputFile.endsWith(".bmp"))) {
+      String name = inputFile.toLowerCase();
+      if (!(name.endsWith(".png")
+          || name.endsWith(".jpg")
+          || name.endsWith(".jpeg")
+          || name.endsWith(".gif")
+          || name.endsWith(".tif")
+          || name.endsWith(".tiff")
+          || name.endsWith(".bmp"))) {
         throw new Exception("Unsupported image format!");
       }
-      images.add(ImageIO.read(new File(inputFile)));
+      images.add(new File(inputFile));
     }
 
-    return images.toArray(new BufferedImage[] {});
+    return images.toArray(new File[] {});
   }
 
   private boolean isPDFFile(String file) {
@@ -281,18 +768,79 @@ public class CLIMode implements Runnable {
     return file.endsWith(".pdf");
   }
 
-  private void checkInputfileNumberValid(PDDocument[] docs) throws Exception {
-    // If user chose the merge option, the input file needs more than one.
-    // Otherwise, the input file must be single.
-    if (docs.length > 1 && !isMerge) {
-      throw new Exception("You can only input one PDF file.");
+  /** Returns whether every input file is handled on its own, with the output as a directory. */
+  private boolean isFileBatch(InputFile[] inputs) {
+    if (isMerge || thumbnailSize != 0) {
+      return false;
+    }
+
+    if (inputs.length > 1) {
+      return true;
+    }
+
+    for (String inputFile : inputFiles) {
+      if (InputFile.isPattern(inputFile)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** Runs the operation for every input file and returns the number of files that failed. */
+  private int doPDFOperationForEachFile(InputFile[] inputs) throws Exception {
+    File outputDir = new File(outputFile);
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new Exception("Can't create the output directory '" + outputFile + "'.");
+    }
+
+    // Every file is saved with its own name in the output directory
+    Map<InputFile, File> outputs = new IdentityHashMap<>();
+    Map<File, InputFile> inputsByOutput = new HashMap<>();
+    boolean isImages = extractImagesFormat != null || convertToImagesFormat != null;
+
+    for (InputFile input : inputs) {
+      File output = new File(outputDir, input.getFile().getName());
+      // Image names are derived from the output file the same way the operations do it
+      File derived = isImages ? new File(PDFOperation.imageBaseName(output.getPath())) : output;
+
+      InputFile other = inputsByOutput.put(derived, input);
+      if (other != null) {
+        throw new Exception(
+            "'"
+                + other.getFile()
+                + "' and '"
+                + input.getFile()
+                + "' have the same output file name.");
+      }
+
+      if (output.getCanonicalFile().equals(input.getFile().getCanonicalFile())) {
+        throw new Exception("The output of '" + input.getFile() + "' is the input file itself.");
+      }
+
+      outputs.put(input, output);
     }
+
+    return new FileBatch(jobs)
+        .run(
+            inputs,
+            input -> {
+              // Every file gets its own copy, as the operations change some options
+              CLIMode cli = (CLIMode) clone();
+              cli.outputFile = outputs.get(input).getPath();
+              cli.doPDFOperation(new InputFile[] {input});
+            });
   }
 
-  private void doPDFOperation(PDDocument[] docs) throws Exception {
+  private void doPDFOperation(InputFile[] inputs) throws Exception {
     if (isDecrypt) {
       // Decrypt
-      PDFOperation.decryptPDF(docs[0], outputFile);
+      setCryptThreads(inputs[0]);
+      runCached(
+          "decrypt",
+          inputs,
+          outputFiles(),
+          () -> PDFOperation.decryptPDF(inputs[0].load(), outputFile));
 
     } else if (extractImagesFormat != null) {
       // Extract images
@@ -304,20 +852,48 @@ public class CLIMode implements Runnable {
       if (!(extractImagesFormat.equals("png")
           || extractImagesFormat.equals("jpg")
           || extractImagesFormat.equals("jpeg")
-          || extractImagesFormat.equals("gif"))) {
-        throw new Exception("Unsupported image format. You only can choose PNG, JPG and GIF!");
+          || extractImagesFormat.equals("gif")
+          || extractImagesFormat.equals("raw"))) {
+        throw new Exception(
+            "Unsupported image format. You only can choose PNG, JPG, GIF and RAW!");
       }
 
-      PDFOperation.extractImages(docs[0], outputFile, extractImagesFormat, dpi, isZip);
+      // Encode on the calling thread for default
+      threads = (threads == 0) ? 1 : threads;
+
+      if (threads < 0) {
+        throw new Exception("Invalid thread number. You need to use at least one thread!");
+      }
+
+      PDFOperation.extractImages(
+          inputs[0],
+          outputFile,
+          extractImagesFormat,
+          dpi,
+          isZip,
+          threads,
+          createImageEncoder());
 
     } else if (isMerge) {
       // Merge
       // Check input file number
-      if (docs.length < 2) {
+      if (inputs.length < 2) {
         throw new Exception("Invalid input file number. You need to input more than one file!");
       }
 
-      PDFOperation.mergePDF(outputFile, docs);
+      if (isIncremental) {
+        runCached(
+            "append-pages",
+            inputs,
+            outputFiles(),
+            () -> PDFOperation.appendPages(outputFile, inputs));
+      } else {
+        runCached(
+            "merge " + isDedup,
+            inputs,
+            outputFiles(),
+            () -> PDFOperation.mergePDF(outputFile, isDedup, inputs));
+      }
 
     } else if (password != null) {
       // Set the password
@@ -329,7 +905,12 @@ public class CLIMode implements Runnable {
         throw new Exception("Invalid key length. You can only use 40, 128 and 256!");
       }
 
-      PDFOperation.encryptPDF(docs[0], outputFile, password, keyLength);
+      setCryptThreads(inputs[0]);
+      runCached(
+          "set-password " + keyLength + " " + password,
+          inputs,
+          outputFiles(),
+          () -> PDFOperation.encryptPDF(inputs[0], outputFile, threads, password, keyLength));
 
     } else if (permissions != null) {
       // Limit the permission
@@ -343,26 +924,89 @@ public class CLIMode implements Runnable {
         }
       }
 
-      PDFOperation.encryptPDF(docs[0], outputFile, "", 256, permissions);
+      setCryptThreads(inputs[0]);
+      runCached(
+          "limit-permission " + String.join(",", permissions).toLowerCase(),
+          inputs,
+          outputFiles(),
+          () -> PDFOperation.encryptPDF(inputs[0], outputFile, threads, "", 256, permissions));
 
     } else if (removeRanges != null) {
-      // Remove the single page
-      String[] pageNumberStrs = removeRanges.split(",");
-      int[] pageNumbers = new int[pageNumberStrs.length];
-
-      for (int i = 0; i < pageNumbers.length; i++) {
-        pageNumbers[i] = Integer.parseInt(pageNumberStrs[i]);
-      }
-
-      PDFOperation.removePages(docs[0], outputFile, pageNumbers);
+      // Remove the pages
+      runCached(
+          "remove-pages " + removeRanges,
+          inputs,
+          outputFiles(),
+          () -> PDFOperation.removePages(inputs[0].load(), outputFile, removeRanges));
 
     } else if (degree != 0) {
       // Rotate
-      PDFOperation.rotatePDF(docs[0], degree, outputFile);
+      runCached(
+          "rotate " + degree + " " + isIncremental,
+          inputs,
+          outputFiles(),
+          () -> PDFOperation.rotatePDF(inputs[0], degree, outputFile, isIncremental));
 
     } else if (splitRange != null) {
       // Split
-      PDFOperation.splitPDF(docs[0], splitRange, outputFile);
+      // Save on the calling thread for default
+      threads = (threads == 0) ? 1 : threads;
+
+      if (threads < 0) {
+        throw new Exception("Invalid thread number. You need to use at least one thread!");
+      }
+
+      // Every range is saved to its own file, numbered in the order of the ranges
+      List<File> outputs = new ArrayList<>();
+      String outputName =
+          outputFile.endsWith(".pdf") ? outputFile.replace(".pdf", "") : outputFile;
+      for (int i = 0; i < splitRange.split(",").length; i++) {
+        outputs.add(new File(outputName + (i + 1) + ".pdf"));
+      }
+
+      runCached(
+          "split " + splitRange,
+          inputs,
+          outputs,
+          () -> PDFOperation.splitPDF(inputs[0].load(), splitRange, outputFile, threads));
+
+    } else if (steps != null) {
+      // Apply every step before saving
+      // Key length use 256 for default
+      keyLength = (keyLength == 0) ? 256 : keyLength;
+
+      // Check the key length
+      if (!(keyLength == 40 || keyLength == 128 || keyLength == 256)) {
+        throw new Exception("Invalid key length. You can only use 40, 128 and 256!");
+      }
+
+      PDFPipeline pipeline = PDFPipeline.parse(keyLength, steps);
+      setCryptThreads(inputs[0]);
+      runCached(
+          "step " + keyLength + " " + String.join(" ", steps),
+          inputs,
+          outputFiles(),
+          () -> pipeline.run(inputs[0], outputFile, threads));
+
+    } else if (thumbnailSize != 0) {
+      // Create thumbnails
+      if (thumbnailSize < 0) {
+        throw new Exception("Invalid thumbnail size. The size must be at least one pixel!");
+      }
+
+      File outputDir = new File(outputFile);
+      if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+        throw new Exception("Can't create the output directory '" + outputFile + "'.");
+      }
+
+      // Create them on the calling thread for default
+      threads = (threads == 0) ? 1 : threads;
+
+      if (threads < 0) {
+        throw new Exception("Invalid thread number. You need to use at least one thread!");
+      }
+
+      PDFOperation.createThumbnails(outputDir, thumbnailSize, cache, threads, inputs);
 
     } else if (convertToImagesFormat != null) {
       // Convert to images
@@ -378,7 +1022,44 @@ public class CLIMode implements Runnable {
         throw new Exception("Unsupported image format. You only can choose PNG, JPG and GIF!");
       }
 
-      PDFOperation.pdfToImage(docs[0], outputFile, convertToImagesFormat, dpi, isZip);
+      // Render on the calling thread for default
+      threads = (threads == 0) ? 1 : threads;
+
+      if (threads < 0) {
+        throw new Exception("Invalid thread number. You need to use at least one thread!");
+      }
+
+      ImageType type = parseImageType();
+      if (type == ImageType.BINARY && !convertToImagesFormat.equals("gif")
+          && !convertToImagesFormat.equals("png")) {
+        throw new Exception("JPEG images can't be BINARY. You can use PNG or GIF!");
+      }
+
+      if (bandHeight != 0) {
+        if (bandHeight < 0) {
+          throw new Exception("Invalid band height. The band must be at least one row!");
+        }
+
+        if (!convertToImagesFormat.equals("png")) {
+          throw new Exception("Images in bands can only be PNG!");
+        }
+
+        PDFOperation.pdfToBandedImages(
+            inputs[0].load(), outputFile, dpi, type, bandHeight, createImageEncoder());
+        return;
+      }
+
+      // The cache keeps every page, so only the pages which aren't cached are rendered
+      PDFOperation.pdfToImage(
+          inputs[0],
+          outputFile,
+          convertToImagesFormat,
+          dpi,
+          type,
+          isZip,
+          threads,
+          resultCache,
+          createImageEncoder());
 
     } else {
       throw new Exception("Unknown error");
@@ -0,0 +1,156 @@
+package pdftool;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+@Command(
+    name = "PDFTool client",
+    synopsisHeading = "",
+    customSynopsis = "%nUsage: PDFTool client [--port PORT] [--repeat N] -- [OPTION]...%n",
+    description =
+        "Send a job to a running 'PDFTool daemon'. "
+            + "Everything after '--' uses the same syntax as PDFTool.%n",
+    footer =
+        "%nExamples: %n  PDFTool client -- -r 90 -i /path/to/file.pdf -o /path/to/save.pdf"
+            + "%n  PDFTool client --repeat 100 -- -d -i /path/to/file.pdf -o /path/to/save.pdf",
+    sortOptions = false,
+    mixinStandardHelpOptions = true,
+    version = "PDFTool 1.0")
+public class ClientMode implements Runnable {
+
+  // Options of PDFTool whose values are file names
+  private static final Set<String> FILE_OPTIONS =
+      new HashSet<>(
+          Arrays.asList(
+              "-i",
+              "--input-file",
+              "-o",
+              "--output-file",
+              "--scratch-dir",
+              "--cache-dir",
+              "--metrics"));
+
+  @Option(
+      names = {"--port"},
+      paramLabel = "PORT",
+      description = "Port of the daemon. The default is 7007.")
+  private int port = DaemonMode.DEFAULT_PORT;
+
+  @Option(
+      names = {"--repeat"},
+      paramLabel = "N",
+      description =
+          "Send the job N times and print the latency percentiles. The default is 1.")
+  private int repeat = 1;
+
+  @Parameters(paramLabel = "OPTION", description = "PDFTool options of the job.")
+  private String[] arguments = {};
+
+  @Override
+  public void run() {
+    try {
+      long[] latencies = new long[Math.max(repeat, 1)];
+
+      for (int i = 0; i < latencies.length; i++) {
+        long startTime = System.nanoTime();
+        String response = send();
+        latencies[i] = System.nanoTime() - startTime;
+
+        System.out.println(response);
+      }
+
+      if (latencies.length > 1) {
+        printPercentiles(latencies);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private String send() throws Exception {
+    byte[] token;
+    Path tokenFile = DaemonMode.tokenFile(port);
+    try {
+      token = Files.readAllBytes(tokenFile);
+    } catch (NoSuchFileException e) {
+      throw new Exception("No daemon of this user is running on port " + port + ".");
+    }
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DaemonMode.writeRequest(socket, token, absolutePaths(arguments));
+      String response = DaemonMode.readResponse(socket);
+
+      if (response == null) {
+        throw new Exception("The daemon closed the connection without response.");
+      }
+
+      return response;
+    }
+  }
+
+  /**
+   * Returns the arguments with absolute file names, because the daemon resolves relative names
+   * against its own working directory.
+   */
+  static String[] absolutePaths(String[] args) {
+    String[] absoluteArgs = args.clone();
+    String option = null;
+
+    for (int i = 0; i < absoluteArgs.length; i++) {
+      String arg = absoluteArgs[i];
+      int equalsIndex = arg.indexOf('=');
+
+      if (arg.startsWith("--")
+          && equalsIndex > 0
+          && FILE_OPTIONS.contains(arg.substring(0, equalsIndex))) {
+        absoluteArgs[i] =
+            arg.substring(0, equalsIndex + 1) + absolutePath(arg.substring(equalsIndex + 1));
+        option = null;
+      } else if (arg.startsWith("-")) {
+        option = FILE_OPTIONS.contains(arg) ? arg : null;
+      } else if (option != null) {
+        absoluteArgs[i] = absolutePath(arg);
+
+        // Only the input option takes more than one file
+        if (!option.equals("-i") && !option.equals("--input-file")) {
+          option = null;
+        }
+      }
+    }
+
+    return absoluteArgs;
+  }
+
+  private static String absolutePath(String path) {
+    // An input can end with ':password', which stays behind the absolute name
+    File file = new File(path);
+    return file.isAbsolute() ? path : file.getAbsolutePath();
+  }
+
+  private static void printPercentiles(long[] latencies) {
+    Arrays.sort(latencies);
+    System.out.println(
+        String.format(
+            "Latency of %d jobs: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+            latencies.length,
+            percentile(latencies, 50),
+            percentile(latencies, 90),
+            percentile(latencies, 99),
+            latencies[latencies.length - 1] / 1e6));
+  }
+
+  private static double percentile(long[] sortedLatencies, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(index, 0)] / 1e6;
+  }
+}
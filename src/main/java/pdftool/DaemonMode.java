@@ -0,0 +1,294 @@
+package pdftool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.font.FontMappers;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(
+    name = "PDFTool daemon",
+    synopsisHeading = "",
+    customSynopsis = "%nUsage: PDFTool daemon [--port PORT] [--workers WORKERS]%n",
+    description =
+        "Keep PDFTool running and take jobs from 'PDFTool client' on the local machine. "
+            + "Only clients which can read the token file in ~/.pdftool, which is private to "
+            + "the user running the daemon, are served. Jobs read and write files with the "
+            + "permissions of that user.%n",
+    footer = "%nExamples: %n  PDFTool daemon --port 7007 --workers 4",
+    sortOptions = false,
+    mixinStandardHelpOptions = true,
+    version = "PDFTool 1.0")
+public class DaemonMode implements Runnable {
+
+  static final int DEFAULT_PORT = 7007;
+  // A client has to send its request within this time, so an idle connection can't hold a worker
+  private static final int REQUEST_TIMEOUT_MILLIS = 30000;
+  private static final int MAX_ARGUMENTS = 1 << 16;
+  private static final int MAX_ARGUMENT_BYTES = 1 << 20;
+  private static final String REDACTED = "***";
+
+  @Option(
+      names = {"--port"},
+      paramLabel = "PORT",
+      description = "Local port to listen on. The default is 7007.")
+  private int port = DEFAULT_PORT;
+
+  @Option(
+      names = {"--workers"},
+      paramLabel = "WORKERS",
+      description = "Number of jobs run at the same time. The default is the number of processors.")
+  private int workers = Runtime.getRuntime().availableProcessors();
+
+  @Override
+  public void run() {
+    try {
+      serve();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void serve() throws Exception {
+    if (workers < 1) {
+      throw new Exception("Invalid worker number. You need to use at least one worker!");
+    }
+
+    warmUp();
+
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workers * 16));
+
+    try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+      byte[] token = createToken(tokenFile(port));
+      System.out.println(
+          "Listening on " + server.getLocalSocketAddress() + " with " + workers + " workers...");
+
+      while (true) {
+        Socket socket = server.accept();
+        try {
+          executor.execute(() -> handle(socket, token));
+        } catch (RejectedExecutionException e) {
+          respond(socket, "ERROR 0 Too many queued jobs, try again later.");
+          socket.close();
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void warmUp() throws Exception {
+    System.out.println("Warm up...");
+
+    // The font cache and Java2D are shared by every job, so pay for them once
+    FontMappers.instance().getFontBoxFont("Helvetica", null);
+    try (PDDocument doc = new PDDocument()) {
+      doc.addPage(new PDPage());
+      new PDFRenderer(doc).renderImageWithDPI(0, 72, ImageType.RGB);
+    }
+  }
+
+  /**
+   * Returns the file with the token a client has to send. Any local user can connect to the port,
+   * but only the user running the daemon can read the file.
+   */
+  static Path tokenFile(int port) {
+    return Paths.get(System.getProperty("user.home"), ".pdftool", "daemon-" + port + ".token");
+  }
+
+  private static byte[] createToken(Path file) throws IOException {
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    byte[] token = Base64.getUrlEncoder().withoutPadding().encode(random);
+
+    Files.createDirectories(file.getParent());
+    Files.deleteIfExists(file);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(
+          file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      // Elsewhere the home directory of the user is private already
+      Files.createFile(file);
+    }
+    Files.write(file, token);
+    file.toFile().deleteOnExit();
+
+    return token;
+  }
+
+  private void handle(Socket socket, byte[] token) {
+    long startTime = System.nanoTime();
+
+    try (Socket client = socket) {
+      client.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      String[] args;
+      try {
+        args = readRequest(client, token);
+      } catch (SocketTimeoutException e) {
+        System.out.println("Dropped a connection without request.");
+        return;
+      }
+
+      if (args == null) {
+        System.out.println("Rejected a request with an invalid token.");
+        respond(client, "ERROR " + elapsedMillis(startTime) + " Invalid token.");
+        return;
+      }
+
+      String response;
+
+      try {
+        CLIMode.execute(args);
+        response = "OK " + elapsedMillis(startTime);
+      } catch (Exception e) {
+        String message = (e.getMessage() == null) ? e.toString() : e.getMessage();
+        response = "ERROR " + elapsedMillis(startTime) + " " + message.replace('\n', ' ');
+      }
+
+      System.out.println("Job " + String.join(" ", redactPasswords(args)) + ": " + response);
+      respond(client, response);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Returns the arguments with every password replaced, so they can be logged. */
+  static String[] redactPasswords(String[] args) {
+    String[] redactedArgs = args.clone();
+    String option = null;
+
+    for (int i = 0; i < redactedArgs.length; i++) {
+      String arg = redactedArgs[i];
+      int equalsIndex = arg.indexOf('=');
+
+      if (arg.startsWith("--") && equalsIndex > 0) {
+        redactedArgs[i] =
+            arg.substring(0, equalsIndex + 1)
+                + redactValue(arg.substring(0, equalsIndex), arg.substring(equalsIndex + 1));
+        option = null;
+      } else if (arg.startsWith("-p") && arg.length() > 2) {
+        // The password right behind the short option
+        redactedArgs[i] = "-p" + REDACTED;
+        option = null;
+      } else if (arg.startsWith("-")) {
+        option = arg;
+      } else if (option != null) {
+        redactedArgs[i] = redactValue(option, arg);
+
+        // Only the input option takes more than one value
+        if (!option.equals("-i") && !option.equals("--input-file")) {
+          option = null;
+        }
+      }
+    }
+
+    return redactedArgs;
+  }
+
+  private static String redactValue(String option, String value) {
+    if (option.equals("-p") || option.equals("--set-password")) {
+      return REDACTED;
+    } else if (option.equals("--step") && value.startsWith("set-password=")) {
+      return "set-password=" + REDACTED;
+    } else if ((option.equals("-i") || option.equals("--input-file")) && value.contains(":")) {
+      // An input can end with ':password'
+      return value.substring(0, value.indexOf(':') + 1) + REDACTED;
+    }
+
+    return value;
+  }
+
+  private static long elapsedMillis(long startTime) {
+    return (System.nanoTime() - startTime) / 1000000;
+  }
+
+  // A request is the length and bytes of the token, the number of arguments, then the length and
+  // UTF-8 bytes of every argument, so an argument can be empty or contain line breaks
+  static void writeRequest(Socket socket, byte[] token, String[] args) throws IOException {
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeInt(token.length);
+    out.write(token);
+    out.writeInt(args.length);
+    for (String arg : args) {
+      byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    out.flush();
+  }
+
+  /** Reads the arguments of a request, or returns null if the request has a wrong token. */
+  static String[] readRequest(Socket socket, byte[] token) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    if (!MessageDigest.isEqual(token, readBytes(in))) {
+      return null;
+    }
+
+    int argNumber = in.readInt();
+    if (argNumber < 0 || argNumber > MAX_ARGUMENTS) {
+      throw new IOException("Invalid request with " + argNumber + " arguments.");
+    }
+
+    String[] args = new String[argNumber];
+    for (int i = 0; i < argNumber; i++) {
+      args[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    return args;
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_ARGUMENT_BYTES) {
+      throw new IOException("Invalid request with an argument of " + length + " bytes.");
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  // A response is a single line: 'OK <millis>' or 'ERROR <millis> <message>'
+  private static void respond(Socket socket, String response) throws IOException {
+    Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    writer.write(response + "\n");
+    writer.flush();
+  }
+
+  static String readResponse(Socket socket) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    return reader.readLine();
+  }
+}
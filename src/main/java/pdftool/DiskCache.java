@@ -0,0 +1,221 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps results in files of a directory under a byte budget. When the budget is exceeded, the
+ * entries used longest ago are deleted. The entries already in the directory are picked up again
+ * in the order they were last used, so the cache survives between runs.
+ */
+public class DiskCache {
+
+  private static final String SUFFIX = ".cache";
+
+  private final File dir;
+  private final long maxBytes;
+  // Entry names with their sizes, in access order
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  public DiskCache(File dir, long maxBytes) throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Can't create the cache directory '" + dir + "'.");
+    }
+
+    File[] files = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+    if (files != null) {
+      Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+      for (File file : files) {
+        entries.put(file.getName(), file.length());
+        totalBytes += file.length();
+      }
+    }
+
+    evict();
+  }
+
+  /** Returns the cached data of the key, or null if it isn't in the cache. */
+  public synchronized byte[] get(String key) {
+    String name = toFileName(key);
+    if (entries.get(name) == null) {
+      Metrics.count("cache_misses", 1);
+      return null;
+    }
+
+    File file = new File(dir, name);
+    try {
+      byte[] data = Files.readAllBytes(file.toPath());
+      // The modification time keeps the access order for the next run
+      file.setLastModified(System.currentTimeMillis());
+      Metrics.count("cache_hits", 1);
+      return data;
+    } catch (IOException e) {
+      // Deleted by someone else, which is only a miss
+      remove(name);
+      Metrics.count("cache_misses", 1);
+      return null;
+    }
+  }
+
+  public synchronized void put(String key, byte[] data) throws IOException {
+    String name = toFileName(key);
+    File file = new File(dir, name);
+
+    // Write to a temporary file first, so another process never reads half an entry
+    File temp = File.createTempFile("entry", ".tmp", dir);
+    try {
+      Files.write(temp.toPath(), data);
+      Files.move(
+          temp.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+
+    added(name, data.length);
+  }
+
+  /** Copies the cached data of the key to the target, returns false if it isn't cached. */
+  public synchronized boolean copyTo(String key, File target) {
+    String name = toFileName(key);
+    if (entries.get(name) == null) {
+      Metrics.count("cache_misses", 1);
+      return false;
+    }
+
+    File file = new File(dir, name);
+    try {
+      Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      file.setLastModified(System.currentTimeMillis());
+      Metrics.count("cache_hits", 1);
+      return true;
+    } catch (IOException e) {
+      remove(name);
+      Metrics.count("cache_misses", 1);
+      return false;
+    }
+  }
+
+  /** Stores a copy of the file, without reading it into the heap. */
+  public synchronized void putFile(String key, File source) throws IOException {
+    String name = toFileName(key);
+    File temp = File.createTempFile("entry", ".tmp", dir);
+    try {
+      Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.move(
+          temp.toPath(),
+          new File(dir, name).toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+
+    added(name, source.length());
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      new File(dir, entry.getKey()).delete();
+      totalBytes -= entry.getValue();
+      iterator.remove();
+      Metrics.count("cache_evictions", 1);
+    }
+  }
+
+  private void added(String name, long size) {
+    Long oldSize = entries.put(name, size);
+    totalBytes += size - ((oldSize == null) ? 0 : oldSize);
+    evict();
+  }
+
+  private void remove(String name) {
+    Long size = entries.remove(name);
+    if (size != null) {
+      totalBytes -= size;
+    }
+  }
+
+  private static String toFileName(String key) {
+    return toHex(sha256().digest(key.getBytes(StandardCharsets.UTF_8))) + SUFFIX;
+  }
+
+  /** Returns the SHA-256 of the whole content of the file. */
+  public static String hashFile(File file) throws IOException {
+    MessageDigest digest = sha256();
+
+    try (InputStream input = Files.newInputStream(file.toPath())) {
+      byte[] buffer = new byte[64 * 1024];
+      for (int n = input.read(buffer); n != -1; n = input.read(buffer)) {
+        digest.update(buffer, 0, n);
+      }
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Returns a SHA-256 over the length, the start and the end of the file. PDF files keep their
+   * trailer, xref and ID at the end, and every writer rewrites or appends to it, so a change
+   * of the file changes its end without reading the whole file.
+   */
+  public static String fingerprintFile(File file) throws IOException {
+    MessageDigest digest = sha256();
+    int partSize = 64 * 1024;
+
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      long length = input.length();
+      digest.update(Long.toString(length).getBytes(StandardCharsets.UTF_8));
+
+      byte[] buffer = new byte[(int) Math.min(partSize, length)];
+      input.readFully(buffer);
+      digest.update(buffer);
+
+      if (length > partSize) {
+        buffer = new byte[(int) Math.min(partSize, length - partSize)];
+        input.seek(length - buffer.length);
+        input.readFully(buffer);
+        digest.update(buffer);
+      }
+    }
+
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform has to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,219 @@
+package pdftool;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * An image file encoded into the data of a PDF image, without any PDDocument. The encoding can
+ * run on any thread; only {@link #toXObject(PDDocument)} has to be called by the document owner.
+ */
+public class EncodedImage {
+
+  private final byte[] data;
+  private final COSName filter;
+  private final int width, height;
+  private final PDColorSpace colorSpace;
+  private final EncodedImage softMask;
+
+  private EncodedImage(
+      byte[] data,
+      COSName filter,
+      int width,
+      int height,
+      PDColorSpace colorSpace,
+      EncodedImage softMask) {
+    this.data = data;
+    this.filter = filter;
+    this.width = width;
+    this.height = height;
+    this.colorSpace = colorSpace;
+    this.softMask = softMask;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public static EncodedImage encode(File file) throws IOException {
+    long startTime = System.nanoTime();
+    EncodedImage image = read(file);
+    Metrics.timer("encode_image").stop(startTime);
+    Metrics.count("bytes_read", file.length());
+
+    return image;
+  }
+
+  private static EncodedImage read(File file) throws IOException {
+    String name = file.getName().toLowerCase();
+
+    if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+      // A JPEG file is already a valid DCTDecode stream, so only its header is read
+      byte[] jpeg = Files.readAllBytes(file.toPath());
+      EncodedImage image = fromJPEG(jpeg);
+      if (image != null) {
+        return image;
+      }
+    }
+
+    BufferedImage image = ImageIO.read(file);
+    if (image == null) {
+      throw new IOException("'" + file + "' isn't a supported image.");
+    }
+
+    return encode(image);
+  }
+
+  public static EncodedImage encode(BufferedImage image) throws IOException {
+    int width = image.getWidth(), height = image.getHeight();
+    boolean isGray = image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    boolean hasAlpha = image.getColorModel().hasAlpha();
+    int components = isGray ? 1 : 3;
+
+    ByteArrayOutputStream colorBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream alphaBytes = new ByteArrayOutputStream();
+    Deflater colorDeflater = new Deflater(), alphaDeflater = new Deflater();
+
+    try (DeflaterOutputStream color = new DeflaterOutputStream(colorBytes, colorDeflater);
+        DeflaterOutputStream alpha = new DeflaterOutputStream(alphaBytes, alphaDeflater)) {
+      int[] argb = new int[width];
+      byte[] colorRow = new byte[width * components];
+      byte[] alphaRow = new byte[width];
+
+      // Row by row, so the raw image never has to be held next to the decoded one
+      for (int y = 0; y < height; y++) {
+        image.getRGB(0, y, width, 1, argb, 0, width);
+
+        for (int x = 0; x < width; x++) {
+          int pixel = argb[x];
+          if (isGray) {
+            colorRow[x] = (byte) pixel;
+          } else {
+            colorRow[x * 3] = (byte) (pixel >> 16);
+            colorRow[x * 3 + 1] = (byte) (pixel >> 8);
+            colorRow[x * 3 + 2] = (byte) pixel;
+          }
+          alphaRow[x] = (byte) (pixel >>> 24);
+        }
+
+        color.write(colorRow);
+        if (hasAlpha) {
+          alpha.write(alphaRow);
+        }
+      }
+    } finally {
+      colorDeflater.end();
+      alphaDeflater.end();
+    }
+
+    EncodedImage softMask =
+        hasAlpha
+            ? new EncodedImage(
+                alphaBytes.toByteArray(),
+                COSName.FLATE_DECODE,
+                width,
+                height,
+                PDDeviceGray.INSTANCE,
+                null)
+            : null;
+
+    return new EncodedImage(
+        colorBytes.toByteArray(),
+        COSName.FLATE_DECODE,
+        width,
+        height,
+        isGray ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE,
+        softMask);
+  }
+
+  private static EncodedImage fromJPEG(byte[] jpeg) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(jpeg));
+
+    if (in.readUnsignedShort() != 0xFFD8) {
+      return null;
+    }
+
+    // Walk the marker segments until the frame header with the size and the components
+    while (in.available() > 4) {
+      int marker = in.readUnsignedShort();
+      int length = in.readUnsignedShort();
+
+      boolean isFrame =
+          marker >= 0xFFC0 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8
+              && marker != 0xFFCC;
+      if (isFrame) {
+        int precision = in.readUnsignedByte();
+        int height = in.readUnsignedShort();
+        int width = in.readUnsignedShort();
+        int components = in.readUnsignedByte();
+
+        if (precision != 8 || width == 0 || height == 0) {
+          return null;
+        }
+
+        switch (components) {
+          case 1:
+            return new EncodedImage(
+                jpeg, COSName.DCT_DECODE, width, height, PDDeviceGray.INSTANCE, null);
+          case 3:
+            return new EncodedImage(
+                jpeg, COSName.DCT_DECODE, width, height, PDDeviceRGB.INSTANCE, null);
+          case 4:
+            return new EncodedImage(
+                jpeg, COSName.DCT_DECODE, width, height, PDDeviceCMYK.INSTANCE, null);
+          default:
+            return null;
+        }
+      }
+
+      if ((marker & 0xFF00) != 0xFF00 || length < 2) {
+        return null;
+      }
+      in.skipBytes(length - 2);
+    }
+
+    return null;
+  }
+
+  public PDImageXObject toXObject(PDDocument doc) throws IOException {
+    PDImageXObject image =
+        new PDImageXObject(
+            doc, new ByteArrayInputStream(data), filter, width, height, 8, colorSpace);
+
+    if (filter == COSName.DCT_DECODE && colorSpace == PDDeviceCMYK.INSTANCE) {
+      // CMYK JPEG files are stored inverted, the same as JPEGFactory does
+      COSArray decode = new COSArray();
+      for (int i = 0; i < 4; i++) {
+        decode.add(COSInteger.ONE);
+        decode.add(COSInteger.ZERO);
+      }
+      image.setDecode(decode);
+    }
+
+    if (softMask != null) {
+      image.getCOSObject().setItem(COSName.SMASK, softMask.toXObject(doc));
+    }
+
+    return image;
+  }
+}
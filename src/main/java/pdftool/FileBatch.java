@@ -0,0 +1,93 @@
+package pdftool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the same operation on many files at the same time. A file that fails is reported and
+ * skipped, and no new file is started while the heap is almost full.
+ */
+public class FileBatch {
+
+  public interface Task {
+    void run(InputFile input) throws Exception;
+  }
+
+  /** Part of the maximum heap above which no new file is started. */
+  private static final double MAX_HEAP_USAGE = 0.75;
+
+  private final int jobs;
+
+  public FileBatch(int jobs) {
+    this.jobs = jobs;
+  }
+
+  /** Runs the task for every file and returns the number of files that failed. */
+  public int run(InputFile[] inputs, Task task) throws InterruptedException {
+    System.out.println("Start to process " + inputs.length + " files with " + jobs + " jobs...");
+    long startTime = System.nanoTime();
+
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    Semaphore slots = new Semaphore(jobs);
+    AtomicInteger runningFiles = new AtomicInteger(), failedFiles = new AtomicInteger();
+    AtomicLong inputBytes = new AtomicLong();
+
+    try {
+      for (InputFile input : inputs) {
+        slots.acquire();
+        waitForHeap(runningFiles);
+        runningFiles.incrementAndGet();
+
+        executor.execute(
+            () -> {
+              try {
+                task.run(input);
+                inputBytes.addAndGet(input.getFile().length());
+              } catch (Throwable e) {
+                // One bad file must not stop the others, even when it runs out of heap
+                failedFiles.incrementAndGet();
+                Metrics.count("failed_files", 1);
+                System.err.println(
+                    "Failed '"
+                        + input.getFile()
+                        + "': "
+                        + ((e.getMessage() == null) ? e.toString() : e.getMessage()));
+              } finally {
+                runningFiles.decrementAndGet();
+                slots.release();
+              }
+            });
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.println(
+        String.format(
+            "Processed %d files (%d failed) in %.2f s (%.1f files/s, %.1f MB/s)",
+            inputs.length,
+            failedFiles.get(),
+            seconds,
+            inputs.length / seconds,
+            inputBytes.get() / (1024.0 * 1024.0) / seconds));
+
+    return failedFiles.get();
+  }
+
+  private static void waitForHeap(AtomicInteger runningFiles) throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    long maxBytes = (long) (runtime.maxMemory() * MAX_HEAP_USAGE);
+
+    // Without a running file nothing frees the heap, so the next file starts anyway
+    while (runningFiles.get() > 0 && runtime.totalMemory() - runtime.freeMemory() > maxBytes) {
+      Metrics.count("heap_throttles", 1);
+      Thread.sleep(50);
+    }
+  }
+}
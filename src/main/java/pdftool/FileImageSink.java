@@ -0,0 +1,18 @@
+package pdftool;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class FileImageSink implements ImageSink {
+
+  @Override
+  public void write(int index, String fileName, byte[] data) throws IOException {
+    try (FileOutputStream fos = new FileOutputStream(fileName)) {
+      fos.write(data);
+    }
+    Metrics.count("bytes_written", data.length);
+  }
+
+  @Override
+  public void close() {}
+}
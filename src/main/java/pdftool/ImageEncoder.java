@@ -0,0 +1,102 @@
+package pdftool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes images for the image files we write. PNG images are written by {@link PngEncoder} with
+ * the given compression level and row filter, JPEG images with the given quality, and the other
+ * formats by ImageIO.
+ */
+public class ImageEncoder {
+
+  private final int pngLevel;
+  private final PngEncoder.Filter pngFilter;
+  private final int jpegQuality;
+
+  /**
+   * The PNG level goes from 0 (fastest) to 9 (smallest file), the JPEG quality from 1 to 100.
+   */
+  public ImageEncoder(int pngLevel, PngEncoder.Filter pngFilter, int jpegQuality) {
+    this.pngLevel = pngLevel;
+    this.pngFilter = pngFilter;
+    this.jpegQuality = jpegQuality;
+  }
+
+  /** The PNG level and JPEG quality ImageIO uses, with the PNG filter chosen for every row. */
+  public static ImageEncoder defaults() {
+    return new ImageEncoder(4, PngEncoder.Filter.ADAPTIVE, 75);
+  }
+
+  public PngEncoder getPngEncoder() {
+    return new PngEncoder(pngLevel, pngFilter);
+  }
+
+  public byte[] encode(BufferedImage image, String format) throws IOException {
+    long startTime = System.nanoTime();
+    byte[] data;
+
+    if (format.equals("png")) {
+      data = getPngEncoder().encode(image);
+    } else if (format.equals("jpg") || format.equals("jpeg")) {
+      data = encodeJPEG(image);
+    } else {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      if (!ImageIO.write(image, format, bytes)) {
+        throw new IOException("No image writer for format '" + format + "'");
+      }
+      data = bytes.toByteArray();
+    }
+
+    Metrics.timer("encode_image").stop(startTime);
+    return data;
+  }
+
+  private byte[] encodeJPEG(BufferedImage image) throws IOException {
+    if (image.getColorModel().hasAlpha()) {
+      // JPEG can't keep the alpha channel
+      BufferedImage rgb =
+          new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = rgb.createGraphics();
+      g.drawImage(image, 0, 0, Color.WHITE, null);
+      g.dispose();
+      image = rgb;
+    }
+
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext()) {
+      throw new IOException("No image writer for format 'jpeg'");
+    }
+
+    ImageWriter writer = writers.next();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(jpegQuality / 100f);
+
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /** Describes the settings, for the keys of cached images. */
+  @Override
+  public String toString() {
+    return "png " + pngLevel + " " + pngFilter + " jpeg " + jpegQuality;
+  }
+}
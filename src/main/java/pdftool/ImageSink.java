@@ -0,0 +1,29 @@
+package pdftool;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface ImageSink extends Closeable {
+
+  void write(int index, String fileName, byte[] data) throws IOException;
+
+  /**
+   * Tells the sink that an image won't come because of the failure, so the writers waiting for it
+   * fail as well instead of waiting forever.
+   */
+  default void abort(Throwable failure) {}
+
+  static ImageSink open(String outputFile, boolean isZip) throws IOException {
+    return open(outputFile, isZip, 1);
+  }
+
+  /** Opens a sink which the given number of threads write to at the same time. */
+  static ImageSink open(String outputFile, boolean isZip, int threads) throws IOException {
+    if (isZip) {
+      return new ZipImageSink(
+          outputFile.endsWith(".zip") ? outputFile : outputFile + ".zip", threads * 2);
+    }
+
+    return new FileImageSink();
+  }
+}
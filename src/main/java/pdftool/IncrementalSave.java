@@ -0,0 +1,159 @@
+package pdftool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSUpdateInfo;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Saves only the changed objects and a new xref section behind the original file, instead of
+ * writing the whole document again. PDFBox only writes the objects marked as updated, and only
+ * finds them through marked parents, so every change has to be marked up to the catalog.
+ */
+public class IncrementalSave {
+
+  /** Marks a changed page, the page tree nodes above it and the catalog. */
+  public static void markPage(PDDocument doc, PDPage page) {
+    COSDictionary node = page.getCOSObject();
+
+    while (node != null && !node.isNeedToBeUpdated()) {
+      node.setNeedToBeUpdated(true);
+      node = node.getCOSDictionary(COSName.PARENT);
+    }
+
+    doc.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+  }
+
+  /** Marks a page added to the document, everything it uses and the page tree above it. */
+  public static void markNewPage(PDDocument doc, PDPage page) {
+    markNew(page.getCOSObject(), Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    COSDictionary parent = page.getCOSObject().getCOSDictionary(COSName.PARENT);
+    if (parent != null) {
+      // The new page is in the kids of its parent and counted by every node above
+      COSArray kids = parent.getCOSArray(COSName.KIDS);
+      if (kids != null) {
+        kids.setNeedToBeUpdated(true);
+      }
+
+      for (COSDictionary node = parent;
+          node != null;
+          node = node.getCOSDictionary(COSName.PARENT)) {
+        node.setNeedToBeUpdated(true);
+      }
+    }
+
+    doc.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+  }
+
+  private static void markNew(COSBase object, Set<COSBase> marked) {
+    if (object instanceof COSObject) {
+      object = ((COSObject) object).getObject();
+    }
+
+    if (object == null || !marked.add(object)) {
+      return;
+    }
+
+    if (object instanceof COSUpdateInfo) {
+      ((COSUpdateInfo) object).setNeedToBeUpdated(true);
+    }
+
+    if (object instanceof COSDictionary) {
+      for (COSName key : ((COSDictionary) object).keySet()) {
+        // Don't walk back up into the page tree of the document
+        if (!key.equals(COSName.PARENT)) {
+          markNew(((COSDictionary) object).getItem(key), marked);
+        }
+      }
+    } else if (object instanceof COSArray) {
+      for (COSBase item : (COSArray) object) {
+        markNew(item, marked);
+      }
+    }
+  }
+
+  /**
+   * Saves the changes of a document loaded from the input file. If the output is the input file,
+   * the changes are appended to it, otherwise the original bytes are copied as they are and the
+   * changes are written behind them.
+   */
+  public static void save(PDDocument doc, File inputFile, String outputFile) throws IOException {
+    if (doc.isEncrypted()) {
+      throw new IOException("Encrypted PDF files can't be saved incrementally.");
+    }
+
+    long startTime = System.nanoTime();
+    File output = new File(outputFile);
+    long originalLength = inputFile.length();
+    boolean isAppend = output.getCanonicalFile().equals(inputFile.getCanonicalFile());
+
+    if (isAppend) {
+      try {
+        doc.saveIncremental(
+            new SkipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(output, true)), originalLength));
+      } catch (IOException e) {
+        // Cut off the part of the update that was written, so the original file stays readable
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+          file.setLength(originalLength);
+        }
+        throw e;
+      }
+    } else {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+        doc.saveIncremental(out);
+      }
+    }
+
+    Metrics.timer("save").stop(startTime);
+    Metrics.count("bytes_written", isAppend ? output.length() - originalLength : output.length());
+  }
+
+  /**
+   * PDFBox writes the original file before the update, which is already there when the update is
+   * appended to the file itself.
+   */
+  private static class SkipOutputStream extends FilterOutputStream {
+
+    private long skipBytes;
+
+    SkipOutputStream(OutputStream out, long skipBytes) {
+      super(out);
+      this.skipBytes = skipBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (skipBytes > 0) {
+        skipBytes--;
+      } else {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int skipped = (int) Math.min(skipBytes, len);
+      skipBytes -= skipped;
+
+      if (len > skipped) {
+        out.write(b, off + skipped, len - skipped);
+      }
+    }
+  }
+}
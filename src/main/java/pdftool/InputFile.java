@@ -0,0 +1,218 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+public class InputFile {
+
+  private final File file;
+  private final String password;
+  private MemoryUsageSetting memoryUsage = MemoryUsageSetting.setupMainMemoryOnly();
+  private boolean isMapped;
+  private int decryptThreads = 1;
+  private boolean isLazy;
+
+  public InputFile(File file, String password) {
+    this.file = file;
+    this.password = password;
+  }
+
+  public static InputFile parse(String inputFile) {
+    if (inputFile.contains(":")) {
+      int index = inputFile.indexOf(':');
+
+      // Extract the file name and password
+      return new InputFile(
+          new File(inputFile.substring(0, index)), inputFile.substring(index + 1));
+    }
+
+    return new InputFile(new File(inputFile), null);
+  }
+
+  /**
+   * Parses the input like {@link #parse(String)}, where the file can also be a directory, meaning
+   * every PDF file in it, or a pattern like 'dir/*.pdf' or 'dir/**.pdf'. The password is used for
+   * every file.
+   */
+  public static List<InputFile> expand(String inputFile) throws IOException {
+    InputFile input = parse(inputFile);
+    List<InputFile> inputs = new ArrayList<>();
+
+    for (File file : expand(input.getFile())) {
+      inputs.add(new InputFile(file, input.getPassword()));
+    }
+
+    return inputs;
+  }
+
+  /** Returns whether the input is a directory or a pattern, which can mean more than one file. */
+  public static boolean isPattern(String inputFile) {
+    File file = parse(inputFile).getFile();
+    return file.isDirectory() || isGlob(file.getPath());
+  }
+
+  private static List<File> expand(File file) throws IOException {
+    List<File> files = new ArrayList<>();
+
+    if (file.isDirectory()) {
+      File[] children = file.listFiles((dir, name) -> name.endsWith(".pdf"));
+      if (children == null) {
+        throw new IOException("Can't list the files in '" + file + "'.");
+      }
+
+      for (File child : children) {
+        if (child.isFile()) {
+          files.add(child);
+        }
+      }
+
+    } else if (isGlob(file.getPath())) {
+      // Walk from the directory before the first wildcard, only as deep as the pattern goes
+      Path pattern = file.toPath().normalize();
+      int baseCount = 0;
+      while (baseCount < pattern.getNameCount() && !isGlob(pattern.getName(baseCount).toString())) {
+        baseCount++;
+      }
+
+      Path base;
+      if (baseCount == 0) {
+        base = pattern.isAbsolute() ? pattern.getRoot() : Paths.get("");
+      } else {
+        base = pattern.subpath(0, baseCount);
+        base = pattern.isAbsolute() ? pattern.getRoot().resolve(base) : base;
+      }
+      int depth =
+          pattern.toString().contains("**")
+              ? Integer.MAX_VALUE
+              : pattern.getNameCount() - baseCount;
+
+      // A relative pattern is matched against the paths relative to the working directory
+      PathMatcher matcher = pattern.getFileSystem().getPathMatcher("glob:" + pattern);
+      Path workingDir = Paths.get("").toAbsolutePath();
+      if (Files.isDirectory(base.toAbsolutePath())) {
+        try (Stream<Path> paths = Files.walk(base.toAbsolutePath(), depth)) {
+          files.addAll(
+              paths
+                  .filter(path -> Files.isRegularFile(path))
+                  .map(path -> pattern.isAbsolute() ? path : workingDir.relativize(path))
+                  .filter(matcher::matches)
+                  .map(Path::toFile)
+                  .collect(Collectors.toList()));
+        }
+      }
+
+    } else {
+      files.add(file);
+    }
+
+    files.sort(null);
+    return files;
+  }
+
+  private static boolean isGlob(String path) {
+    return path.contains("*") || path.contains("?") || path.contains("[") || path.contains("{");
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public MemoryUsageSetting getMemoryUsage() {
+    return memoryUsage;
+  }
+
+  public void setMemoryUsage(MemoryUsageSetting memoryUsage) {
+    this.memoryUsage = memoryUsage;
+  }
+
+  public boolean isMapped() {
+    return isMapped;
+  }
+
+  /** Reads the file through memory maps instead of heap buffers. */
+  public void setMapped(boolean isMapped) {
+    this.isMapped = isMapped;
+  }
+
+  public int getDecryptThreads() {
+    return decryptThreads;
+  }
+
+  /** Decrypts the streams of an encrypted file with the given number of threads. */
+  public void setDecryptThreads(int decryptThreads) {
+    this.decryptThreads = decryptThreads;
+  }
+
+  public boolean isLazy() {
+    return isLazy;
+  }
+
+  /** Parses the objects of the file when they are read, see {@link LazyParser}. */
+  public void setLazy(boolean isLazy) {
+    this.isLazy = isLazy;
+  }
+
+  public PDDocument load() throws IOException {
+    long startTime = System.nanoTime();
+    PDDocument doc;
+    if (isMapped) {
+      doc = load(new MappedRandomAccessRead(file));
+    } else if (decryptThreads > 1 || isLazy) {
+      doc = load(new RandomAccessBufferedFileInputStream(file));
+    } else {
+      doc = PDDocument.load(file, getPasswordOrEmpty(), memoryUsage);
+    }
+    Metrics.timer("load").stop(startTime);
+    Metrics.count("bytes_read", file.length());
+    Progress.opened(doc);
+
+    return doc;
+  }
+
+  private PDDocument load(RandomAccessRead source) throws IOException {
+    // The same as PDDocument.load, with the given source
+    ScratchFile scratchFile = null;
+
+    try {
+      scratchFile = new ScratchFile(memoryUsage);
+      if (decryptThreads > 1) {
+        return StreamCrypto.load(
+            source, getPasswordOrEmpty(), scratchFile, memoryUsage, decryptThreads);
+      }
+
+      PDFParser parser =
+          isLazy
+              ? new LazyParser(source, getPasswordOrEmpty(), scratchFile)
+              : new PDFParser(source, getPasswordOrEmpty(), scratchFile);
+      parser.parse();
+      return parser.getPDDocument();
+    } catch (IOException e) {
+      IOUtils.closeQuietly(scratchFile);
+      source.close();
+      throw e;
+    }
+  }
+
+  private String getPasswordOrEmpty() {
+    return (password == null) ? "" : password;
+  }
+}
@@ -0,0 +1,172 @@
+package pdftool;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+
+/**
+ * Parses the xref table, the trailer and the page tree of a file, and every other object when it
+ * is read for the first time. PDFParser reads every object reachable from the catalog before the
+ * first page is touched, streams included, so splitting three pages off a 5 GB file reads all of
+ * it. Here the references parse their objects themselves, so the cost of an operation follows
+ * the pages it reaches instead of the size of the file. The source has to stay open until the
+ * document is closed, which PDDocument does.
+ */
+public class LazyParser extends PDFParser {
+
+  public LazyParser(RandomAccessRead source, String password, ScratchFile scratchFile)
+      throws IOException {
+    // The document of PDFParser is replaced before anything is parsed. It gets a scratch file of
+    // its own, as closing it closes the scratch file too
+    super(source, password, ScratchFile.getMainMemoryOnlyInstance());
+    document.close();
+    document = new LazyDocument(scratchFile);
+  }
+
+  @Override
+  protected void parseDictObjects(COSDictionary dict, COSName... excludeObjects) {
+    // The objects are parsed when they are read
+  }
+
+  private synchronized void resolve(LazyObject object) throws IOException {
+    // The parser reads objects in the middle of others, e.g. the length of a stream, so it has to
+    // continue where it stopped
+    long position = source.getPosition();
+    try {
+      parseObjectDynamically(object.getObjectNumber(), object.getGenerationNumber(), false);
+      Metrics.count("lazy_objects", 1);
+    } finally {
+      source.seek(position);
+    }
+  }
+
+  /** Keeps its own pool, as the pool of COSDocument only creates plain references. */
+  private class LazyDocument extends COSDocument {
+
+    private final Map<COSObjectKey, COSObject> objects = new HashMap<>();
+
+    private LazyDocument(ScratchFile scratchFile) {
+      super(scratchFile);
+    }
+
+    @Override
+    public COSObject getObjectFromPool(COSObjectKey key) throws IOException {
+      COSObject object = (key == null) ? null : objects.get(key);
+
+      if (object == null) {
+        object = new LazyObject();
+        if (key != null) {
+          object.setObjectNumber(key.getNumber());
+          object.setGenerationNumber(key.getGeneration());
+          objects.put(key, object);
+        }
+      }
+
+      return object;
+    }
+
+    @Override
+    public COSObject removeObject(COSObjectKey key) {
+      return objects.remove(key);
+    }
+
+    @Override
+    public List<COSObject> getObjects() {
+      return new ArrayList<>(objects.values());
+    }
+
+    @Override
+    public COSObjectKey getKey(COSBase object) {
+      for (Map.Entry<COSObjectKey, COSObject> entry : objects.entrySet()) {
+        // Only parsed objects can be the same as the given one
+        if (((LazyObject) entry.getValue()).getParsedObject() == object) {
+          return entry.getKey();
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public COSObject getObjectByType(COSName type) throws IOException {
+      List<COSObject> objectsOfType = getObjectsByType(type);
+      return objectsOfType.isEmpty() ? null : objectsOfType.get(0);
+    }
+
+    @Override
+    public List<COSObject> getObjectsByType(COSName type) throws IOException {
+      List<COSObject> objectsOfType = new ArrayList<>();
+
+      for (COSObject object : getObjects()) {
+        COSBase base = object.getObject();
+        if (base instanceof COSDictionary
+            && type.equals(((COSDictionary) base).getCOSName(COSName.TYPE))) {
+          objectsOfType.add(object);
+        }
+      }
+
+      return objectsOfType;
+    }
+  }
+
+  private class LazyObject extends COSObject {
+
+    private boolean isParsed;
+
+    private LazyObject() throws IOException {
+      super(null);
+    }
+
+    @Override
+    public COSBase getObject() {
+      COSBase object = super.getObject();
+      if (object != null) {
+        return object;
+      }
+
+      synchronized (LazyParser.this) {
+        // Parsed only once, the parser itself asks for the object while it parses it
+        if (!isParsed) {
+          isParsed = true;
+          try {
+            resolve(this);
+          } catch (IOException e) {
+            throw new UncheckedIOException(
+                "Failed to read object " + getObjectNumber() + " " + getGenerationNumber(), e);
+          }
+        }
+      }
+
+      return super.getObject();
+    }
+
+    @Override
+    public COSBase getDictionaryObject(COSName key) {
+      COSBase object = getObject();
+      return (object instanceof COSDictionary)
+          ? ((COSDictionary) object).getDictionaryObject(key)
+          : null;
+    }
+
+    @Override
+    public COSBase getItem(COSName key) {
+      COSBase object = getObject();
+      return (object instanceof COSDictionary) ? ((COSDictionary) object).getItem(key) : null;
+    }
+
+    private COSBase getParsedObject() {
+      return super.getObject();
+    }
+  }
+}
@@ -0,0 +1,820 @@
+package pdftool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Writes linearized PDF files (Fast Web View, ISO 32000-1 Annex F), which PDFBox can't. The first
+ * page and everything it needs come first in the file, after a linearization dictionary, an xref
+ * section for them and the hint tables, so a viewer reading the file over range requests can show
+ * the first page before the rest of the file arrives. The other pages follow one after the other,
+ * then the objects shared by them, then everything else and the main xref section.
+ *
+ * <p>Every object is written again with a new number. Encrypted documents aren't supported.
+ */
+public class Linearizer {
+
+  private static final COSName LINEARIZED = COSName.getPDFName("Linearized");
+  // Numbers which are only known at the end are written with a fixed width
+  private static final int NUMBER_WIDTH = 10;
+
+  private final PDDocument doc;
+  // The indirect objects and their numbers
+  private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+  private final List<COSBase> objects = new ArrayList<>();
+  private final List<COSDictionary> pages = new ArrayList<>();
+  private final Map<COSBase, byte[]> heads = new IdentityHashMap<>();
+
+  // The parts of the file, in the order of Annex F
+  private COSDictionary catalog;
+  private final List<COSBase> firstPage = new ArrayList<>();
+  private final List<List<COSBase>> otherPages = new ArrayList<>();
+  private final List<COSBase> shared = new ArrayList<>();
+  private final List<COSBase> others = new ArrayList<>();
+  // The shared objects each page uses, as indexes into the shared object hint table
+  private final List<List<Integer>> sharedByPage = new ArrayList<>();
+
+  private int firstPageNumber;
+  private final COSString newId =
+      new COSString(UUID.randomUUID().toString().getBytes(StandardCharsets.US_ASCII));
+
+  private Linearizer(PDDocument doc) {
+    this.doc = doc;
+  }
+
+  /** Writes the PDF file again, linearized. */
+  public static void linearize(File file, MemoryUsageSetting memoryUsage) throws IOException {
+    long startTime = System.nanoTime();
+    File temp = File.createTempFile("linearized", ".tmp", file.getAbsoluteFile().getParentFile());
+
+    try {
+      try (PDDocument doc = PDDocument.load(file, memoryUsage);
+          OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp.toPath()))) {
+        save(doc, out);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      temp.delete();
+    }
+
+    Metrics.timer("linearize").stop(startTime);
+  }
+
+  public static void save(PDDocument doc, OutputStream out) throws IOException {
+    if (doc.isEncrypted()) {
+      throw new IOException("Encrypted PDF files can't be linearized.");
+    }
+
+    if (doc.getNumberOfPages() == 0) {
+      throw new IOException("PDF files without pages can't be linearized.");
+    }
+
+    Linearizer linearizer = new Linearizer(doc);
+    linearizer.collect();
+    linearizer.split();
+    linearizer.number();
+    linearizer.write(out);
+  }
+
+  /** Finds every indirect object of the document. */
+  private void collect() {
+    catalog = doc.getDocumentCatalog().getCOSObject();
+    add(catalog);
+
+    COSBase info = doc.getDocument().getTrailer().getItem(COSName.INFO);
+    if (info != null) {
+      walk(info, null, null);
+    }
+
+    for (PDPage page : doc.getPages()) {
+      pages.add(page.getCOSObject());
+    }
+  }
+
+  private void add(COSBase object) {
+    Deque<COSBase> pending = new ArrayDeque<>();
+    if (numbers.put(object, 0) == null) {
+      objects.add(object);
+      pending.push(object);
+    }
+
+    while (!pending.isEmpty()) {
+      for (COSBase child : references(pending.pop(), false)) {
+        if (numbers.put(child, 0) == null) {
+          objects.add(child);
+          pending.push(child);
+        }
+      }
+    }
+  }
+
+  private void walk(COSBase value, COSName key, List<COSBase> found) {
+    COSBase object = indirect(value);
+    if (object != null) {
+      if (found != null) {
+        found.add(object);
+      } else {
+        add(object);
+      }
+    } else if (value instanceof COSDictionary) {
+      for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+        walk(entry.getValue(), entry.getKey(), found);
+      }
+    } else if (value instanceof COSArray) {
+      for (COSBase item : (COSArray) value) {
+        walk(item, key, found);
+      }
+    }
+  }
+
+  /** Returns the indirect objects the object refers to, optionally without the page tree. */
+  private List<COSBase> references(COSBase object, boolean isPageContent) {
+    List<COSBase> found = new ArrayList<>();
+
+    if (object instanceof COSDictionary) {
+      for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet()) {
+        if (!(isPageContent && entry.getKey().equals(COSName.PARENT))) {
+          walkDirect(entry.getValue(), isPageContent, found);
+        }
+      }
+    } else if (object instanceof COSArray) {
+      for (COSBase item : (COSArray) object) {
+        walkDirect(item, isPageContent, found);
+      }
+    }
+
+    return found;
+  }
+
+  private void walkDirect(COSBase value, boolean isPageContent, List<COSBase> found) {
+    COSBase object = indirect(value);
+    if (object != null) {
+      found.add(object);
+    } else if (value instanceof COSDictionary) {
+      for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+        if (!(isPageContent && entry.getKey().equals(COSName.PARENT))) {
+          walkDirect(entry.getValue(), isPageContent, found);
+        }
+      }
+    } else if (value instanceof COSArray) {
+      for (COSBase item : (COSArray) value) {
+        walkDirect(item, isPageContent, found);
+      }
+    }
+  }
+
+  /**
+   * Returns the object if the value is written as a reference, otherwise null. Like COSWriter,
+   * referenced dictionaries and arrays, streams and dictionaries which aren't direct are indirect
+   * objects, and references to anything else are written in place.
+   */
+  private static COSBase indirect(COSBase value) {
+    if (value instanceof COSObject) {
+      COSBase object = ((COSObject) value).getObject();
+      return (object instanceof COSDictionary || object instanceof COSArray) ? object : null;
+    }
+
+    if (value instanceof COSStream || (value instanceof COSDictionary && !value.isDirect())) {
+      return value;
+    }
+
+    return null;
+  }
+
+  /** Sorts the objects into the first page, the other pages, the shared objects and the rest. */
+  private void split() {
+    // The pages using every object, the first page as 0
+    Map<COSBase, List<Integer>> users = new IdentityHashMap<>();
+    Map<COSBase, Boolean> isPage = new IdentityHashMap<>();
+    for (COSDictionary page : pages) {
+      isPage.put(page, true);
+    }
+
+    List<List<COSBase>> pageObjects = new ArrayList<>();
+    for (int i = 0; i < pages.size(); i++) {
+      List<COSBase> reached = reach(pages.get(i), isPage);
+      pageObjects.add(reached);
+      for (COSBase object : reached) {
+        users.computeIfAbsent(object, o -> new ArrayList<>()).add(i);
+      }
+    }
+
+    Map<COSBase, Boolean> placed = new IdentityHashMap<>();
+    placed.put(catalog, true);
+
+    for (int i = 0; i < pages.size(); i++) {
+      List<COSBase> part = new ArrayList<>();
+      part.add(pages.get(i));
+      placed.put(pages.get(i), true);
+
+      for (COSBase object : pageObjects.get(i)) {
+        List<Integer> pageUsers = users.get(object);
+        boolean isOwn = pageUsers.size() == 1 || (i == 0 && pageUsers.get(0) == 0);
+        if (isOwn && placed.put(object, true) == null) {
+          part.add(object);
+        }
+      }
+
+      if (i == 0) {
+        firstPage.addAll(part);
+      } else {
+        otherPages.add(part);
+      }
+    }
+
+    for (int i = 1; i < pages.size(); i++) {
+      for (COSBase object : pageObjects.get(i)) {
+        if (placed.put(object, true) == null) {
+          shared.add(object);
+        }
+      }
+    }
+
+    for (COSBase object : objects) {
+      if (placed.put(object, true) == null) {
+        others.add(object);
+      }
+    }
+
+    // Every page lists the objects it shares with other pages, by their index in the hint table
+    Map<COSBase, Integer> sharedIndexes = new IdentityHashMap<>();
+    for (int i = 0; i < firstPage.size(); i++) {
+      sharedIndexes.put(firstPage.get(i), i);
+    }
+    for (int i = 0; i < shared.size(); i++) {
+      sharedIndexes.put(shared.get(i), firstPage.size() + i);
+    }
+
+    for (int i = 0; i < pages.size(); i++) {
+      List<Integer> indexes = new ArrayList<>();
+      if (i > 0) {
+        for (COSBase object : pageObjects.get(i)) {
+          if (users.get(object).size() > 1) {
+            indexes.add(sharedIndexes.get(object));
+          }
+        }
+      }
+      sharedByPage.add(indexes);
+    }
+  }
+
+  /** Returns the objects the page needs, without the page tree and the other pages. */
+  private List<COSBase> reach(COSDictionary page, Map<COSBase, Boolean> isPage) {
+    List<COSBase> reached = new ArrayList<>();
+    Map<COSBase, Boolean> seen = new IdentityHashMap<>();
+    Deque<COSBase> pending = new ArrayDeque<>();
+    seen.put(page, true);
+    pending.add(page);
+
+    // Resources inherited from the page tree belong to the page as well
+    COSDictionary node = page;
+    while (node != null && !node.containsKey(COSName.RESOURCES)) {
+      node = node.getCOSDictionary(COSName.PARENT);
+    }
+    if (node != null && node != page) {
+      List<COSBase> inherited = new ArrayList<>();
+      walk(node.getItem(COSName.RESOURCES), COSName.RESOURCES, inherited);
+      pending.addAll(inherited);
+    }
+
+    while (!pending.isEmpty()) {
+      COSBase object = pending.poll();
+      if (object != page) {
+        if (seen.put(object, true) != null) {
+          continue;
+        }
+        reached.add(object);
+      }
+
+      for (COSBase child : references(object, true)) {
+        boolean isPageTree =
+            isPage.containsKey(child)
+                || (child instanceof COSDictionary
+                    && COSName.PAGES.equals(((COSDictionary) child).getCOSName(COSName.TYPE)));
+        if (!isPageTree && !seen.containsKey(child) && numbers.containsKey(child)) {
+          pending.add(child);
+        }
+      }
+    }
+
+    return reached;
+  }
+
+  /**
+   * Numbers the objects. The objects after the first page come first, so the first page xref
+   * section only has to list the numbers from the linearization dictionary on.
+   */
+  private void number() {
+    int number = 1;
+    for (List<COSBase> part : otherPages) {
+      for (COSBase object : part) {
+        numbers.put(object, number++);
+      }
+    }
+    for (COSBase object : shared) {
+      numbers.put(object, number++);
+    }
+    for (COSBase object : others) {
+      numbers.put(object, number++);
+    }
+
+    // The linearization dictionary, the catalog, the hint stream, then the first page
+    firstPageNumber = number;
+    numbers.put(catalog, firstPageNumber + 1);
+    number = firstPageNumber + 3;
+    for (COSBase object : firstPage) {
+      numbers.put(object, number++);
+    }
+  }
+
+  private void write(OutputStream output) throws IOException {
+    int linearizedNumber = firstPageNumber, hintNumber = firstPageNumber + 2;
+    int lastNumber = hintNumber + firstPage.size();
+
+    for (COSBase object : objects) {
+      heads.put(object, head(object));
+    }
+
+    // The offsets of every part. The numbers which aren't known yet have a fixed width, and the
+    // hint stream only has fixed size numbers, so the parts have the same length when written.
+    byte[] header = header();
+    long linearizedOffset = header.length;
+    long firstXrefOffset =
+        linearizedOffset + linearizationDictionary(linearizedNumber, 0, 0, 0, 0, 0).length;
+    long catalogOffset = firstXrefOffset + firstXref(lastNumber, new long[0], 0).length;
+    long hintOffset = catalogOffset + size(catalog);
+    long hintLength = hintStream(hintNumber, 0, 0).length;
+
+    Map<COSBase, Long> offsets = new IdentityHashMap<>();
+    long offset = hintOffset + hintLength;
+    for (COSBase object : firstPage) {
+      offsets.put(object, offset);
+      offset += size(object);
+    }
+    long firstPageEnd = offset;
+
+    for (List<COSBase> part : otherPages) {
+      for (COSBase object : part) {
+        offsets.put(object, offset);
+        offset += size(object);
+      }
+    }
+    long sharedOffset = offset;
+    for (COSBase object : shared) {
+      offsets.put(object, offset);
+      offset += size(object);
+    }
+    for (COSBase object : others) {
+      offsets.put(object, offset);
+      offset += size(object);
+    }
+
+    long mainXrefOffset = offset;
+    byte[] mainXref = mainXref(offsets, firstXrefOffset);
+    long fileLength = mainXrefOffset + mainXref.length;
+    // The white space before the first entry of the main xref section, after "xref\n0 N"
+    long mainXrefEntries = mainXrefOffset + ("xref\n0 " + firstPageNumber).length();
+
+    // The first page xref section lists the linearization dictionary, the catalog, the hint
+    // stream and the first page, in the order of their numbers
+    long[] firstOffsets = new long[lastNumber - firstPageNumber + 1];
+    firstOffsets[0] = linearizedOffset;
+    firstOffsets[1] = catalogOffset;
+    firstOffsets[2] = hintOffset;
+    for (int i = 0; i < firstPage.size(); i++) {
+      firstOffsets[i + 3] = offsets.get(firstPage.get(i));
+    }
+
+    // The offsets in the hint tables are counted as if there was no hint stream
+    byte[] hint =
+        hintStream(
+            hintNumber, offsets.get(pages.get(0)) - hintLength, sharedOffset - hintLength);
+    if (hint.length != hintLength) {
+      throw new IOException("The hint stream changed its length.");
+    }
+
+    long written = catalogOffset;
+    output.write(header);
+    output.write(
+        linearizationDictionary(
+            linearizedNumber, fileLength, hintOffset, hintLength, firstPageEnd, mainXrefEntries));
+    output.write(firstXref(lastNumber, firstOffsets, mainXrefOffset));
+
+    written += writeObject(catalog, output);
+    output.write(hint);
+    written += hint.length;
+
+    for (COSBase object : firstPage) {
+      written += writeObject(object, output);
+    }
+    for (List<COSBase> part : otherPages) {
+      for (COSBase object : part) {
+        written += writeObject(object, output);
+      }
+    }
+    for (COSBase object : shared) {
+      written += writeObject(object, output);
+    }
+    for (COSBase object : others) {
+      written += writeObject(object, output);
+    }
+
+    if (written != mainXrefOffset) {
+      throw new IOException("The objects didn't have the expected length.");
+    }
+    output.write(mainXref);
+    Metrics.count("bytes_written", fileLength);
+  }
+
+  private byte[] header() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out, "%PDF-" + Math.max(doc.getVersion(), 1.2f) + "\n");
+    // Binary bytes, so the file isn't taken for text
+    out.write(new byte[] {'%', (byte) 0xe2, (byte) 0xe3, (byte) 0xcf, (byte) 0xd3, '\n'}, 0, 6);
+    return out.toByteArray();
+  }
+
+  private byte[] linearizationDictionary(
+      int number, long length, long hintOffset, long hintLength, long firstPageEnd, long xref) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out, number + " 0 obj\n<< /" + LINEARIZED.getName() + " 1");
+    write(out, " /L " + pad(length));
+    write(out, " /H [ " + pad(hintOffset) + " " + pad(hintLength) + " ]");
+    write(out, " /O " + pad(numbers.get(pages.get(0))));
+    write(out, " /E " + pad(firstPageEnd));
+    write(out, " /N " + pages.size());
+    write(out, " /T " + pad(xref));
+    write(out, " >>\nendobj\n");
+    return out.toByteArray();
+  }
+
+  /** Without offsets, only the length of the section is right. */
+  private byte[] firstXref(int lastNumber, long[] offsets, long mainXrefOffset)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = lastNumber - firstPageNumber + 1;
+    write(out, "xref\n" + firstPageNumber + " " + count + "\n");
+    for (int i = 0; i < count; i++) {
+      write(out, String.format("%010d 00000 n\r\n", (i < offsets.length) ? offsets[i] : 0));
+    }
+
+    write(out, "trailer\n");
+    writeTrailer(out, lastNumber + 1, mainXrefOffset);
+    write(out, "startxref\n0\n%%EOF\n");
+    return out.toByteArray();
+  }
+
+  private byte[] mainXref(Map<COSBase, Long> offsets, long firstXrefOffset) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = firstPageNumber;
+    write(out, "xref\n0 " + count + "\n");
+    write(out, "0000000000 65535 f\r\n");
+
+    long[] byNumber = new long[count];
+    for (Map.Entry<COSBase, Long> entry : offsets.entrySet()) {
+      int number = numbers.get(entry.getKey());
+      if (number < count) {
+        byNumber[number] = entry.getValue();
+      }
+    }
+    for (int i = 1; i < count; i++) {
+      write(out, String.format("%010d 00000 n\r\n", byNumber[i]));
+    }
+
+    write(out, "trailer\n<< /Size " + count + " >>\n");
+    write(out, "startxref\n" + firstXrefOffset + "\n%%EOF\n");
+    return out.toByteArray();
+  }
+
+  private void writeTrailer(ByteArrayOutputStream out, int size, long mainXrefOffset)
+      throws IOException {
+    COSDictionary trailer = doc.getDocument().getTrailer();
+    write(out, "<< /Size " + size + " /Root " + numbers.get(catalog) + " 0 R");
+
+    COSBase info = indirect(trailer.getItem(COSName.INFO));
+    if (info != null) {
+      write(out, " /Info " + numbers.get(info) + " 0 R");
+    }
+
+    COSArray id = trailer.getCOSArray(COSName.ID);
+    if (id == null || id.size() != 2) {
+      // A new ID, the same for both parts and for every time the trailer is written
+      id = new COSArray();
+      id.add(newId);
+      id.add(newId);
+    }
+    write(out, " /ID ");
+    writeValue(id, out);
+
+    write(out, " /Prev " + pad(mainXrefOffset) + " >>\n");
+  }
+
+  /** The page offset and shared object hint tables, without compression. */
+  private byte[] hintStream(int number, long firstPageStart, long sharedStart) {
+    int pageNumber = pages.size();
+    long[] objectCounts = new long[pageNumber], lengths = new long[pageNumber];
+    long[] sharedCounts = new long[pageNumber];
+    long maxShared = 0, maxSharedIndex = 0;
+
+    for (int i = 0; i < pageNumber; i++) {
+      List<COSBase> part = (i == 0) ? firstPage : otherPages.get(i - 1);
+      objectCounts[i] = part.size();
+      for (COSBase object : part) {
+        lengths[i] += size(object);
+      }
+      sharedCounts[i] = sharedByPage.get(i).size();
+      maxShared = Math.max(maxShared, sharedCounts[i]);
+      for (int index : sharedByPage.get(i)) {
+        maxSharedIndex = Math.max(maxSharedIndex, index);
+      }
+    }
+
+    long minObjects = min(objectCounts), minLength = min(lengths);
+    int objectBits = bits(max(objectCounts) - minObjects);
+    int lengthBits = bits(max(lengths) - minLength);
+
+    BitWriter bits = new BitWriter();
+    // Page offset hint table header, Table F.3
+    bits.write(minObjects, 32);
+    bits.write(firstPageStart, 32);
+    bits.write(objectBits, 16);
+    bits.write(minLength, 32);
+    bits.write(lengthBits, 16);
+    // The content streams are counted as the whole page, like qpdf does
+    bits.write(0, 32);
+    bits.write(0, 16);
+    bits.write(minLength, 32);
+    bits.write(lengthBits, 16);
+    bits.write(bits(maxShared), 16);
+    bits.write(bits(maxSharedIndex), 16);
+    bits.write(0, 16);
+    bits.write(1, 16);
+
+    // Page offset hint table entries, Table F.4, every item for all pages at once
+    for (int i = 0; i < pageNumber; i++) {
+      bits.write(objectCounts[i] - minObjects, objectBits);
+    }
+    bits.flush();
+    for (int i = 0; i < pageNumber; i++) {
+      bits.write(lengths[i] - minLength, lengthBits);
+    }
+    bits.flush();
+    for (int i = 0; i < pageNumber; i++) {
+      bits.write(sharedCounts[i], bits(maxShared));
+    }
+    bits.flush();
+    for (int i = 0; i < pageNumber; i++) {
+      for (int index : sharedByPage.get(i)) {
+        bits.write(index, bits(maxSharedIndex));
+      }
+    }
+    bits.flush();
+    // No numerators, as they have no bits
+    bits.flush();
+    for (int i = 0; i < pageNumber; i++) {
+      bits.write(0, 0);
+    }
+    bits.flush();
+    for (int i = 0; i < pageNumber; i++) {
+      bits.write(lengths[i] - minLength, lengthBits);
+    }
+    bits.flush();
+
+    int sharedTableOffset = bits.size();
+
+    // Shared object hint table, Tables F.5 and F.6, with one object in every group
+    List<COSBase> groups = new ArrayList<>(firstPage);
+    groups.addAll(shared);
+    long[] groupLengths = new long[groups.size()];
+    for (int i = 0; i < groups.size(); i++) {
+      groupLengths[i] = size(groups.get(i));
+    }
+    long minGroupLength = min(groupLengths);
+    int groupLengthBits = bits(max(groupLengths) - minGroupLength);
+
+    bits.write(shared.isEmpty() ? 0 : numbers.get(shared.get(0)), 32);
+    bits.write(shared.isEmpty() ? 0 : sharedStart, 32);
+    bits.write(firstPage.size(), 32);
+    bits.write(groups.size(), 32);
+    bits.write(0, 16);
+    bits.write(minGroupLength, 32);
+    bits.write(groupLengthBits, 16);
+
+    for (long groupLength : groupLengths) {
+      bits.write(groupLength - minGroupLength, groupLengthBits);
+    }
+    bits.flush();
+    for (int i = 0; i < groups.size(); i++) {
+      // No MD5 signatures
+      bits.write(0, 1);
+    }
+    bits.flush();
+
+    byte[] data = bits.toByteArray();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out, number + " 0 obj\n<< /Length " + pad(data.length) + " /S " + pad(sharedTableOffset));
+    write(out, " >>\nstream\n");
+    out.write(data, 0, data.length);
+    write(out, "\nendstream\nendobj\n");
+    return out.toByteArray();
+  }
+
+  /** Returns the object up to its stream data, or the whole object if it isn't a stream. */
+  private byte[] head(COSBase object) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out, numbers.get(object) + " 0 obj\n");
+
+    if (object instanceof COSStream) {
+      COSStream stream = (COSStream) object;
+      write(out, "<<");
+      for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+        // The length is written as it is now, it can't be a reference to another object
+        if (!entry.getKey().equals(COSName.LENGTH)) {
+          write(out, " ");
+          entry.getKey().writePDF(out);
+          write(out, " ");
+          writeValue(entry.getValue(), out);
+        }
+      }
+      write(out, " /Length " + stream.getLength() + " >>\nstream\n");
+    } else {
+      writeDirect(object, out);
+      write(out, "\nendobj\n");
+    }
+
+    return out.toByteArray();
+  }
+
+  private long size(COSBase object) {
+    long size = heads.get(object).length;
+    if (object instanceof COSStream) {
+      size += ((COSStream) object).getLength() + "\nendstream\nendobj\n".length();
+    }
+    return size;
+  }
+
+  private long writeObject(COSBase object, OutputStream out) throws IOException {
+    byte[] head = heads.get(object);
+    out.write(head);
+
+    if (!(object instanceof COSStream)) {
+      return head.length;
+    }
+
+    COSStream stream = (COSStream) object;
+    long length;
+    try (InputStream data = stream.createRawInputStream()) {
+      length = IOUtils.copy(data, out);
+    }
+    if (length != stream.getLength()) {
+      throw new IOException("The stream didn't have its length");
+    }
+    out.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+    return size(object);
+  }
+
+  private void writeValue(COSBase value, OutputStream out) throws IOException {
+    COSBase object = indirect(value);
+    if (object != null) {
+      Integer number = numbers.get(object);
+      write(out, (number == null) ? "null" : number + " 0 R");
+      return;
+    }
+
+    if (value instanceof COSObject) {
+      value = ((COSObject) value).getObject();
+    }
+    writeDirect(value, out);
+  }
+
+  private void writeDirect(COSBase value, OutputStream out) throws IOException {
+    if (value == null || value instanceof COSNull) {
+      write(out, "null");
+    } else if (value instanceof COSDictionary) {
+      write(out, "<<");
+      for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+        write(out, " ");
+        entry.getKey().writePDF(out);
+        write(out, " ");
+        writeValue(entry.getValue(), out);
+      }
+      write(out, " >>");
+    } else if (value instanceof COSArray) {
+      write(out, "[");
+      for (COSBase item : (COSArray) value) {
+        write(out, " ");
+        writeValue(item, out);
+      }
+      write(out, " ]");
+    } else if (value instanceof COSString) {
+      COSWriter.writeString((COSString) value, out);
+    } else if (value instanceof COSName) {
+      ((COSName) value).writePDF(out);
+    } else if (value instanceof COSInteger) {
+      ((COSInteger) value).writePDF(out);
+    } else if (value instanceof COSFloat) {
+      ((COSFloat) value).writePDF(out);
+    } else if (value instanceof COSBoolean) {
+      ((COSBoolean) value).writePDF(out);
+    } else {
+      throw new IOException("Unknown PDF object " + value.getClass().getSimpleName());
+    }
+  }
+
+  private static void write(OutputStream out, String text) {
+    try {
+      out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    } catch (IOException e) {
+      // Only called for byte array streams
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String pad(long number) {
+    return String.format("%0" + NUMBER_WIDTH + "d", number);
+  }
+
+  private static int bits(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  private static long min(long[] values) {
+    long min = Long.MAX_VALUE;
+    for (long value : values) {
+      min = Math.min(min, value);
+    }
+    return (values.length == 0) ? 0 : min;
+  }
+
+  private static long max(long[] values) {
+    long max = 0;
+    for (long value : values) {
+      max = Math.max(max, value);
+    }
+    return max;
+  }
+
+  /** Writes numbers with the given number of bits, the highest bit first. */
+  private static class BitWriter {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int current, used;
+
+    void write(long value, int bits) {
+      for (int i = bits - 1; i >= 0; i--) {
+        current = (current << 1) | (int) ((value >>> i) & 1);
+        if (++used == 8) {
+          out.write(current);
+          current = 0;
+          used = 0;
+        }
+      }
+    }
+
+    /** Fills the last byte with zeros, the next number starts at a byte. */
+    void flush() {
+      if (used > 0) {
+        write(0, 8 - used);
+      }
+    }
+
+    int size() {
+      return out.size();
+    }
+
+    byte[] toByteArray() {
+      flush();
+      return out.toByteArray();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package pdftool;
 
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import picocli.CommandLine;
 import picocli.CommandLine.ParameterException;
@@ -10,12 +11,19 @@ public class Main {
   public static void main(String[] args) {
     System.setProperty("sun.java2d.cmm", "sun.java2d.cmm.kcms.KcmsServiceProvider");
 
-    gotoCLIMode(args);
+    if (args.length > 0 && args[0].equals("daemon")) {
+      gotoMode(new DaemonMode(), Arrays.copyOfRange(args, 1, args.length));
+    } else if (args.length > 0 && args[0].equals("batch")) {
+      gotoMode(new BatchMode(), Arrays.copyOfRange(args, 1, args.length));
+    } else if (args.length > 0 && args[0].equals("client")) {
+      gotoMode(new ClientMode(), Arrays.copyOfRange(args, 1, args.length));
+    } else {
+      gotoMode(new CLIMode(), args);
+    }
   }
 
-  private static void gotoCLIMode(String[] args) {
-    CLIMode cli = new CLIMode();
-    CommandLine cmd = new CommandLine(cli);
+  private static void gotoMode(Runnable mode, String[] args) {
+    CommandLine cmd = new CommandLine(mode);
     cmd.parseWithHandlers(
         new CommandLine.IParseResultHandler2<Object>() {
           @Override
@@ -58,7 +66,7 @@ public class Main {
     } else if (cmd.isVersionHelpRequested()) {
       cmd.printVersionHelp(System.out);
     } else {
-      cli.run();
+      mode.run();
     }
   }
 }
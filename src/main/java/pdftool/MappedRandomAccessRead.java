@@ -0,0 +1,164 @@
+package pdftool;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.pdfbox.io.RandomAccessRead;
+
+/**
+ * Reads a PDF file through memory maps, so the parser reads from the OS page cache instead of
+ * copying the file through heap buffers, and the parts of the file that are never read are
+ * never loaded. Files larger than 2 GB are mapped in several segments.
+ */
+public class MappedRandomAccessRead implements RandomAccessRead {
+
+  private static final int SEGMENT_BITS = 30;
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+  private final long length;
+  private MappedByteBuffer[] segments;
+  private long position;
+
+  public MappedRandomAccessRead(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      length = channel.size();
+      segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+
+      // The maps stay valid after the channel is closed
+      for (int i = 0; i < segments.length; i++) {
+        long start = (long) i << SEGMENT_BITS;
+        long size = Math.min(SEGMENT_SIZE, length - start);
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    checkClosed();
+    if (position >= length) {
+      return -1;
+    }
+
+    int b = segment(position).get(offset(position));
+    position++;
+    return b & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b) throws IOException {
+    return read(b, 0, b.length);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkClosed();
+    if (position >= length) {
+      return -1;
+    }
+
+    int total = (int) Math.min(len, length - position);
+    int done = 0;
+
+    while (done < total) {
+      MappedByteBuffer segment = segment(position);
+      int offset = offset(position);
+      int n = Math.min(total - done, segment.limit() - offset);
+
+      // The casts keep Java 8 from linking to the covariant methods of Java 9 and later
+      ((Buffer) segment).position(offset);
+      segment.get(b, off + done, n);
+
+      done += n;
+      position += n;
+    }
+
+    return total;
+  }
+
+  @Override
+  public long getPosition() throws IOException {
+    checkClosed();
+    return position;
+  }
+
+  @Override
+  public void seek(long position) throws IOException {
+    checkClosed();
+    if (position < 0) {
+      throw new IOException("Invalid position " + position);
+    }
+
+    this.position = Math.min(position, length);
+  }
+
+  @Override
+  public long length() throws IOException {
+    checkClosed();
+    return length;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return segments == null;
+  }
+
+  @Override
+  public int peek() throws IOException {
+    int b = read();
+    if (b != -1) {
+      position--;
+    }
+    return b;
+  }
+
+  @Override
+  public void rewind(int bytes) throws IOException {
+    checkClosed();
+    position = Math.max(position - bytes, 0);
+  }
+
+  @Override
+  public byte[] readFully(int len) throws IOException {
+    byte[] b = new byte[len];
+    if (len > 0 && read(b, 0, len) < len) {
+      throw new EOFException("Premature end of file");
+    }
+    return b;
+  }
+
+  @Override
+  public boolean isEOF() throws IOException {
+    return peek() == -1;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkClosed();
+    return (int) Math.min(length - position, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public void close() {
+    // The maps are released by the garbage collector, there is no way to unmap them before
+    segments = null;
+  }
+
+  private MappedByteBuffer segment(long position) {
+    return segments[(int) (position >> SEGMENT_BITS)];
+  }
+
+  private static int offset(long position) {
+    return (int) (position & (SEGMENT_SIZE - 1));
+  }
+
+  private void checkClosed() throws IOException {
+    if (segments == null) {
+      throw new IOException("The file is closed");
+    }
+  }
+}
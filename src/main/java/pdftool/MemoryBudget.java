@@ -0,0 +1,135 @@
+package pdftool;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+
+public class MemoryBudget {
+
+  private static final AtomicInteger runningJobs = new AtomicInteger();
+
+  private final long processBytes, documentBytes;
+  private final File scratchDir;
+
+  /**
+   * Limits the memory PDFBox keeps on the heap. A negative size means no limit. Everything above
+   * the limit is spilled to scratch files in the given directory.
+   */
+  public MemoryBudget(long processBytes, long documentBytes, File scratchDir) {
+    this.processBytes = processBytes;
+    this.documentBytes = documentBytes;
+    this.scratchDir = scratchDir;
+  }
+
+  public static MemoryBudget unlimited() {
+    return new MemoryBudget(-1, -1, null);
+  }
+
+  public boolean isLimited() {
+    return processBytes >= 0 || documentBytes >= 0;
+  }
+
+  public MemoryUsageSetting getSetting(int documentNumber) {
+    if (!isLimited()) {
+      return MemoryUsageSetting.setupMainMemoryOnly();
+    }
+
+    long bytes = documentBytes;
+    if (processBytes >= 0) {
+      // The process budget is shared by every document opened at the same time
+      long share = processBytes / Math.max(documentNumber, 1);
+      bytes = (bytes < 0) ? share : Math.min(bytes, share);
+    }
+
+    MemoryUsageSetting setting = MemoryUsageSetting.setupMixed(bytes);
+    if (scratchDir != null) {
+      setting.setTempDir(scratchDir);
+    }
+
+    return setting;
+  }
+
+  /** Parses a positive size like 512M or 2G, and throws NumberFormatException otherwise. */
+  public static long parseSize(String size) {
+    size = size.trim().toUpperCase();
+    if (size.endsWith("B")) {
+      size = size.substring(0, size.length() - 1);
+    }
+
+    long unit = 1;
+    if (size.endsWith("K")) {
+      unit = 1024;
+    } else if (size.endsWith("M")) {
+      unit = 1024 * 1024;
+    } else if (size.endsWith("G")) {
+      unit = 1024 * 1024 * 1024;
+    }
+
+    if (unit != 1) {
+      size = size.substring(0, size.length() - 1);
+    }
+
+    long bytes = Long.parseLong(size.trim());
+    // Zero or a negative size would mean no budget at all, so it is as invalid as a typo
+    if (bytes <= 0 || bytes > Long.MAX_VALUE / unit) {
+      throw new NumberFormatException("Invalid size: " + size);
+    }
+
+    return bytes * unit;
+  }
+
+  /**
+   * Starts measuring the peak heap of a job. The heap is shared by the jobs the daemon or batch
+   * mode run at the same time, so the peak is only reset when no other job is running, and then
+   * covers all jobs running until the last one finishes.
+   */
+  public static void startJob() {
+    if (runningJobs.getAndIncrement() == 0) {
+      resetPeakHeap();
+    }
+  }
+
+  public static void finishJob() {
+    runningJobs.decrementAndGet();
+  }
+
+  public static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  public static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+
+    return peak;
+  }
+
+  public void report() {
+    String message = "Peak heap: " + toMegabytes(getPeakHeap());
+
+    if (processBytes >= 0) {
+      message += " (process budget " + toMegabytes(processBytes) + ")";
+    }
+
+    if (documentBytes >= 0) {
+      message += " (document budget " + toMegabytes(documentBytes) + ")";
+    }
+
+    System.out.println(message);
+  }
+
+  private static String toMegabytes(long bytes) {
+    return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+  }
+}
@@ -0,0 +1,167 @@
+package pdftool;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of the whole process. Every operation records into them, so the numbers of
+ * a daemon or batch process add up all the jobs since it started.
+ */
+public class Metrics {
+
+  /** Upper bounds of the histogram buckets in milliseconds. */
+  private static final double[] BUCKETS = {
+    1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+  };
+
+  private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  public static class Timer {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+    private final LongAdder count = new LongAdder(), totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records the time since the given {@link System#nanoTime()}. */
+    public void stop(long startTime) {
+      record(System.nanoTime() - startTime);
+    }
+
+    public void record(long nanos) {
+      double millis = nanos / 1e6;
+      int bucket = 0;
+      while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+        bucket++;
+      }
+
+      buckets.incrementAndGet(bucket);
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getTotalMillis() {
+      return totalNanos.sum() / 1e6;
+    }
+
+    public double getMaxMillis() {
+      return maxNanos.get() / 1e6;
+    }
+
+    /** Returns the upper bound of the bucket the quantile falls into. */
+    public double getQuantileMillis(double quantile) {
+      long rank = (long) Math.ceil(getCount() * quantile), seen = 0;
+
+      for (int i = 0; i < BUCKETS.length; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(BUCKETS[i], getMaxMillis());
+        }
+      }
+
+      return getMaxMillis();
+    }
+  }
+
+  public static Timer timer(String name) {
+    return timers.computeIfAbsent(name, key -> new Timer());
+  }
+
+  public static void count(String name, long value) {
+    counters.computeIfAbsent(name, key -> new LongAdder()).add(value);
+  }
+
+  public static long getCount(String name) {
+    LongAdder counter = counters.get(name);
+    return (counter == null) ? 0 : counter.sum();
+  }
+
+  public static String toJSON() {
+    JsonObject json = new JsonObject();
+
+    JsonObject timerJson = new JsonObject();
+    for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+      Timer timer = entry.getValue();
+      JsonObject values = new JsonObject();
+      values.addProperty("count", timer.getCount());
+      values.addProperty("totalMillis", timer.getTotalMillis());
+      values.addProperty("p50Millis", timer.getQuantileMillis(0.5));
+      values.addProperty("p90Millis", timer.getQuantileMillis(0.9));
+      values.addProperty("p99Millis", timer.getQuantileMillis(0.99));
+      values.addProperty("maxMillis", timer.getMaxMillis());
+      timerJson.add(entry.getKey(), values);
+    }
+    json.add("timers", timerJson);
+
+    JsonObject counterJson = new JsonObject();
+    for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+      counterJson.addProperty(entry.getKey(), entry.getValue().sum());
+    }
+    json.add("counters", counterJson);
+
+    json.addProperty("peakHeapBytes", MemoryBudget.getPeakHeap());
+
+    return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+  }
+
+  /** Returns the metrics in the Prometheus text format. */
+  public static String toPrometheus() {
+    StringBuilder text = new StringBuilder();
+
+    for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+      String name = "pdftool_" + entry.getKey() + "_seconds";
+      Timer timer = entry.getValue();
+      text.append("# TYPE ").append(name).append(" histogram\n");
+
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        cumulative += timer.buckets.get(i);
+        text.append(name)
+            .append("_bucket{le=\"")
+            .append(BUCKETS[i] / 1000)
+            .append("\"} ")
+            .append(cumulative)
+            .append('\n');
+      }
+      text.append(name).append("_bucket{le=\"+Inf\"} ").append(timer.getCount()).append('\n');
+      text.append(name).append("_sum ").append(timer.getTotalMillis() / 1000).append('\n');
+      text.append(name).append("_count ").append(timer.getCount()).append('\n');
+    }
+
+    for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+      String name = "pdftool_" + entry.getKey() + "_total";
+      text.append("# TYPE ").append(name).append(" counter\n");
+      text.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+    }
+
+    text.append("# TYPE pdftool_peak_heap_bytes gauge\n");
+    text.append("pdftool_peak_heap_bytes ").append(MemoryBudget.getPeakHeap()).append('\n');
+
+    return text.toString();
+  }
+
+  /** Writes the metrics in the Prometheus text format for a '.prom' file, otherwise as JSON. */
+  public static void write(File file) throws IOException {
+    String text = file.getName().endsWith(".prom") ? toPrometheus() : toJSON();
+
+    try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+      writer.print(text);
+    }
+  }
+}
@@ -1,24 +1,49 @@
 package pdftool;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 import javafx.scene.image.WritableImage;
 import org.apache.pdfbox.contentstream.PDFStreamEngine;
 import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFCloneUtility;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
-import org.apache.pdfbox.multipdf.Splitter;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDPageTree;
@@ -26,6 +51,8 @@ import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
 import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
 import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
@@ -37,17 +64,60 @@ public class PDFOperation {
 
   private static class ExtractImages extends PDFStreamEngine {
 
+    private static final List<String> JPEG =
+        Arrays.asList(COSName.DCT_DECODE.getName(), COSName.DCT_DECODE_ABBREVIATION.getName());
+    private static final List<String> JPX = Arrays.asList(COSName.JPX_DECODE.getName());
+
     private int imageNumber = 1, dpi;
     private String format, outputFile;
-
-    public ExtractImages(String outputFile, String format, int dpi) {
+    private ImageSink sink;
+    private ImageEncoder imageEncoder;
+    // Images and forms are shared between pages, so remember which streams were already handled
+    private Set<COSBase> extractedImages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Set<COSBase> processedForms = Collections.newSetFromMap(new IdentityHashMap<>());
+    private ExecutorService encoder;
+    private Semaphore encoderSlots;
+    private List<Future<?>> encodings = new ArrayList<>();
+
+    public ExtractImages(
+        String outputFile,
+        String format,
+        int dpi,
+        ImageSink sink,
+        int threads,
+        ImageEncoder imageEncoder) {
       this.dpi = dpi;
       this.format = format;
       this.outputFile = outputFile;
+      this.sink = sink;
+      this.imageEncoder = imageEncoder;
+
+      if (threads > 1) {
+        // Bound the decoded images waiting for an encoder
+        encoder = Executors.newFixedThreadPool(threads);
+        encoderSlots = new Semaphore(threads * 2);
+      }
     }
 
-    private int getTotalImageNumber() {
-      return imageNumber - 1;
+    private void finish() throws IOException {
+      if (encoder == null) {
+        return;
+      }
+
+      try {
+        for (Future<?> encoding : encodings) {
+          encoding.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Image encoding was interrupted", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to encode image: " + e.getCause().getMessage(), e.getCause());
+      } finally {
+        encoder.shutdownNow();
+        // The sink is closed next, so no encoder may still write to it
+        awaitTermination(encoder);
+      }
     }
 
     @Override
@@ -61,18 +131,90 @@ public class PDFOperation {
         if (object instanceof PDImageXObject) {
           PDImageXObject image = (PDImageXObject) object;
 
-          System.out.println("Handle Image " + imageNumber + "...");
-          // ImageIOUtil.writeImage(image.getImage(), outputFile + imageNumber + "." + format, dpi);
-          imageNumber++;
+          if (extractedImages.add(image.getCOSObject())) {
+            Progress.object("Image", imageNumber);
+            extract(imageNumber - 1, image);
+            imageNumber++;
+          }
 
         } else if (object instanceof PDFormXObject) {
           PDFormXObject form = (PDFormXObject) object;
-          showForm(form);
+
+          // A form without its own resources uses the page's, so it may draw other images
+          if (form.getResources() == null || processedForms.add(form.getCOSObject())) {
+            showForm(form);
+          }
         }
       } else {
         super.processOperator(operator, operands);
       }
     }
+
+    private void extract(int index, PDImageXObject image) throws IOException {
+      String suffix = image.getSuffix();
+      boolean isJPEGFormat = format.equals("jpg") || format.equals("jpeg");
+
+      // JPEG and JPEG 2000 streams are copied as they are, unless their colours need the PDF to
+      // be read correctly or the requested format is different
+      if (isPlainColorSpace(image) && image.getCOSObject().getItem(COSName.DECODE) == null) {
+        if ("jpg".equals(suffix) && (isJPEGFormat || format.equals("raw"))) {
+          String fileName = outputFile + (index + 1) + "." + (isJPEGFormat ? format : "jpg");
+          copy(index, fileName, image, JPEG);
+          return;
+
+        } else if ("jpx".equals(suffix) && format.equals("raw")) {
+          copy(index, outputFile + (index + 1) + ".jp2", image, JPX);
+          return;
+        }
+      }
+
+      write(index, image.getImage());
+    }
+
+    private void copy(int index, String fileName, PDImageXObject image, List<String> stopFilters)
+        throws IOException {
+      try (InputStream data = image.createInputStream(stopFilters)) {
+        sink.write(index, fileName, IOUtils.toByteArray(data));
+      }
+    }
+
+    private static boolean isPlainColorSpace(PDImageXObject image) throws IOException {
+      if (image.getMask() != null || image.getSoftMask() != null) {
+        return false;
+      }
+
+      String colorSpace = image.getColorSpace().getName();
+      return colorSpace.equals(PDDeviceGray.INSTANCE.getName())
+          || colorSpace.equals(PDDeviceRGB.INSTANCE.getName());
+    }
+
+    private void write(int index, BufferedImage image) throws IOException {
+      // Decoded images are written as PNG if they keep their own format
+      String imageFormat = format.equals("raw") ? "png" : format;
+      String fileName = outputFile + (index + 1) + "." + imageFormat;
+
+      if (encoder == null) {
+        sink.write(index, fileName, imageEncoder.encode(image, imageFormat));
+        return;
+      }
+
+      // Decoding has to stay on this thread, but encoding can run on the other cores
+      encoderSlots.acquireUninterruptibly();
+      encodings.add(
+          encoder.submit(
+              () -> {
+                try {
+                  sink.write(index, fileName, imageEncoder.encode(image, imageFormat));
+                } catch (Throwable e) {
+                  // The images after this one mustn't wait for it
+                  sink.abort(e);
+                  throw e;
+                } finally {
+                  encoderSlots.release();
+                }
+                return null;
+              }));
+    }
   }
 
   public static Image getPDFCoverImage(PDDocument doc) throws IOException {
@@ -81,67 +223,192 @@ public class PDFOperation {
     return SwingFXUtils.toFXImage(image, new WritableImage(100, 100));
   }
 
+  /** Returns the thumbnail of the first page, from the cache if it was created before. */
+  public static Image getPDFCoverImage(InputFile input, int size, DiskCache cache)
+      throws IOException {
+    input.setLazy(true);
+    return SwingFXUtils.toFXImage(new Thumbnails(cache).getThumbnail(input, size), null);
+  }
+
+  /** Writes the thumbnail of every file as a PNG file named after it to the output directory. */
+  public static void createThumbnails(
+      File outputDir, int size, DiskCache cache, int threads, InputFile... inputs)
+      throws IOException {
+    Progress.print("Start to create thumbnails...");
+    long startTime = System.nanoTime();
+
+    Thumbnails thumbnails = new Thumbnails(cache);
+    ImageSink sink = new FileImageSink();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    List<Future<?>> futures = new ArrayList<>();
+
+    for (int i = 0; i < inputs.length; i++) {
+      InputFile input = inputs[i];
+      int index = i;
+      futures.add(
+          executor.submit(
+              () -> {
+                Progress.object("File", index + 1);
+                String name = input.getFile().getName().replaceFirst("(?i)\\.pdf$", ".png");
+                BufferedImage thumbnail = thumbnails.getThumbnail(input, size);
+                sink.write(
+                    index,
+                    new File(outputDir, name).getPath(),
+                    ImageEncoder.defaults().encode(thumbnail, "png"));
+                return null;
+              }));
+    }
+
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Creating thumbnails was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException(
+          "Failed to create thumbnail: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    Metrics.timer("operation").stop(startTime);
+  }
+
   public static void rotatePDF(File doc, int degree, File outputFile) throws IOException {
-    rotatePDF(PDDocument.load(doc), degree, outputFile.getAbsolutePath());
+    rotatePDF(new InputFile(doc, null).load(), degree, outputFile.getAbsolutePath());
   }
 
   public static void rotatePDF(PDDocument doc, int degree, String outputFile) throws IOException {
-    System.out.println("Start to rotate...");
+    Progress.print("Start to rotate...");
+
+    long startTime = System.nanoTime();
+    rotate(doc, degree);
+    Metrics.timer("operation").stop(startTime);
+
+    save(doc, outputFile);
+    doc.close();
+  }
+
+  public static void rotatePDF(
+      InputFile input, int degree, String outputFile, boolean isIncremental) throws IOException {
+    if (!isIncremental) {
+      rotatePDF(input.load(), degree, outputFile);
+      return;
+    }
+
+    Progress.print("Start to rotate...");
 
-    PDPageTree pages = doc.getPages();
-    for (PDPage page : pages) {
-      System.out.println("Handle Page " + pages.indexOf(page) + "...");
+    // Only /Rotate of the pages changes, so only the page dictionaries are written again
+    try (PDDocument doc = input.load()) {
+      long startTime = System.nanoTime();
+      rotate(doc, degree);
+      for (PDPage page : doc.getPages()) {
+        IncrementalSave.markPage(doc, page);
+      }
+      Metrics.timer("operation").stop(startTime);
+
+      IncrementalSave.save(doc, input.getFile(), outputFile);
+    }
+  }
+
+  public static void rotate(PDDocument doc, int degree) {
+    int pageNumber = 0;
+    for (PDPage page : doc.getPages()) {
+      Progress.page(++pageNumber);
       page.setRotation(page.getRotation() + degree);
     }
-    doc.save(outputFile);
-    doc.close();
   }
 
   public static void decryptPDF(File doc, File outputFile) throws IOException {
-    decryptPDF(PDDocument.load(doc), outputFile.getAbsolutePath());
+    decryptPDF(new InputFile(doc, null).load(), outputFile.getAbsolutePath());
   }
 
   public static void decryptPDF(PDDocument doc, String outputFile) throws IOException {
-    System.out.println("Start to decrypt...");
+    Progress.print("Start to decrypt...");
 
-    doc.setAllSecurityToBeRemoved(true);
-    doc.save(outputFile);
+    decrypt(doc);
+    save(doc, outputFile);
     doc.close();
   }
 
+  public static void decrypt(PDDocument doc) {
+    doc.setAllSecurityToBeRemoved(true);
+  }
+
   public static void encryptPDF(
       File doc, File outputFile, String password, int keyLength, String... permissions)
       throws IOException {
     encryptPDF(
-        PDDocument.load(doc), outputFile.getAbsolutePath(), password, keyLength, permissions);
+        new InputFile(doc, null).load(),
+        outputFile.getAbsolutePath(),
+        password,
+        keyLength,
+        permissions);
   }
 
   public static void encryptPDF(
       PDDocument doc, String outputFile, String password, int keyLength, String... permissions)
       throws IOException {
-    System.out.println("Start to encrypt...");
+    Progress.print("Start to encrypt...");
 
+    long startTime = System.nanoTime();
+    encrypt(doc, password, keyLength, permissions);
+    Metrics.timer("operation").stop(startTime);
+
+    save(doc, outputFile);
+    doc.close();
+  }
+
+  /**
+   * Encrypts the streams with the given number of threads, which use the memory setting of the
+   * input.
+   */
+  public static void encryptPDF(
+      InputFile input,
+      String outputFile,
+      int threads,
+      String password,
+      int keyLength,
+      String... permissions)
+      throws IOException {
+    Progress.print("Start to encrypt...");
+
+    PDDocument doc = input.load();
+    try {
+      long startTime = System.nanoTime();
+      encrypt(doc, password, keyLength, permissions);
+      Metrics.timer("operation").stop(startTime);
+
+      save(doc, outputFile, threads, input.getMemoryUsage());
+    } finally {
+      doc.close();
+    }
+  }
+
+  public static void encrypt(
+      PDDocument doc, String password, int keyLength, String... permissions) throws IOException {
     if (!password.equals("")) {
-      System.out.println("Set password");
+      Progress.print("Set password");
     }
 
     AccessPermission ap = new AccessPermission();
 
     if (permissions.length != 0) {
       for (String permission : permissions) {
-        switch (permission) {
+        switch (permission.toLowerCase()) {
           case "modify":
-            System.out.println("Limit MODIFY");
+            Progress.print("Limit MODIFY");
             ap.setCanModify(false);
             break;
 
           case "print":
-            System.out.println("Limit PRINT");
+            Progress.print("Limit PRINT");
             ap.setCanPrint(false);
             break;
 
           case "extract":
-            System.out.println("Limit EXTRACT content");
+            Progress.print("Limit EXTRACT content");
             ap.setCanExtractContent(false);
             break;
         }
@@ -152,77 +419,394 @@ public class PDFOperation {
     spp.setEncryptionKeyLength(keyLength);
     spp.setPermissions(ap);
 
-    doc.protect(spp);
-    doc.save(outputFile);
-    doc.close();
+    // An earlier decrypt in the same pipeline must not drop the new encryption
+    doc.setAllSecurityToBeRemoved(false);
+    StreamCrypto.protect(doc, spp);
   }
 
   public static void removePages(File doc, File outputFile, int... pageNumbers) throws IOException {
-    removePages(PDDocument.load(doc), outputFile.getAbsolutePath(), pageNumbers);
+    removePages(new InputFile(doc, null).load(), outputFile.getAbsolutePath(), pageNumbers);
   }
 
   public static void removePages(PDDocument doc, String outputFile, int... pageNumbers)
       throws IOException {
-    System.out.println("Start to remove single page...");
-
-    PDPageTree pages = doc.getDocumentCatalog().getPages();
-    for (int i = 0; i < pageNumbers.length; i++) {
-      pageNumbers[i]--;
-      if (i > 0) {
-        for (int j = i; j < pageNumbers.length; j++) {
-          pageNumbers[j]--;
+    BitSet pages = new BitSet();
+    for (int pageNumber : pageNumbers) {
+      pages.set(pageNumber - 1);
+    }
+
+    removePages(doc, outputFile, pages);
+  }
+
+  public static void removePages(PDDocument doc, String outputFile, String ranges)
+      throws IOException {
+    removePages(doc, outputFile, PageRanges.toBitSet(ranges, doc.getNumberOfPages()));
+  }
+
+  private static void removePages(PDDocument doc, String outputFile, BitSet pages)
+      throws IOException {
+    Progress.print("Start to remove pages...");
+
+    long startTime = System.nanoTime();
+    removePages(doc, pages);
+    doc.setAllSecurityToBeRemoved(true);
+    Metrics.timer("operation").stop(startTime);
+
+    save(doc, outputFile);
+    doc.close();
+  }
+
+  public static void removePages(PDDocument doc, BitSet pages) {
+    // Removing pages one by one walks the page tree every time, so build a new flat tree of the
+    // remaining pages in one pass instead
+    COSDictionary root = new COSDictionary();
+    root.setItem(COSName.TYPE, COSName.PAGES);
+    COSArray kids = new COSArray();
+    int index = 0;
+
+    for (PDPage page : doc.getPages()) {
+      Progress.page(index + 1);
+      if (pages.get(index++)) {
+        continue;
+      }
+
+      COSDictionary pageDict = page.getCOSObject();
+      // The old tree nodes are gone, so inherited attributes have to be on the page itself
+      for (COSName attribute :
+          new COSName[] {COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE}) {
+        if (!pageDict.containsKey(attribute)) {
+          COSBase value = PDPageTree.getInheritableAttribute(pageDict, attribute);
+          if (value != null) {
+            pageDict.setItem(attribute, value);
+          }
         }
       }
-      pages.remove(pageNumbers[i]);
+
+      kids.add(pageDict);
     }
-    if (!doc.isAllSecurityToBeRemoved()) {
-      doc.setAllSecurityToBeRemoved(true);
+
+    for (int i = 0; i < kids.size(); i++) {
+      ((COSDictionary) kids.getObject(i)).setItem(COSName.PARENT, root);
     }
-    doc.save(outputFile);
-    doc.close();
+
+    root.setItem(COSName.KIDS, kids);
+    root.setInt(COSName.COUNT, kids.size());
+    doc.getDocumentCatalog().getCOSObject().setItem(COSName.PAGES, root);
   }
 
   public static void pdfToImage(File doc, File outputFile, String format, int dpi, boolean isZip)
       throws IOException {
-    pdfToImage(PDDocument.load(doc), outputFile.getAbsolutePath(), format, dpi, isZip);
+    pdfToImage(new InputFile(doc, null), outputFile.getAbsolutePath(), format, dpi, isZip, 1);
   }
 
   public static void pdfToImage(
       PDDocument doc, String outputFile, String format, int dpi, boolean isZip) throws IOException {
-    System.out.println("Start to convert PDF to images...");
+    pdfToImage(doc, outputFile, format, dpi, ImageType.RGB, isZip, ImageEncoder.defaults());
+  }
+
+  public static void pdfToImage(
+      PDDocument doc,
+      String outputFile,
+      String format,
+      int dpi,
+      ImageType imageType,
+      boolean isZip,
+      ImageEncoder imageEncoder)
+      throws IOException {
+    Progress.print("Start to convert PDF to images...");
+
+    outputFile = imageBaseName(outputFile);
 
-    if (outputFile.contains(".")) {
-      outputFile = outputFile.substring(0, outputFile.indexOf('.'));
+    long startTime = System.nanoTime();
+    PageRaster raster = new PageRaster(new PDFRenderer(doc), imageType);
+    try (ImageSink sink = ImageSink.open(outputFile, isZip)) {
+      for (int i = 0; i < doc.getNumberOfPages(); i++) {
+        Progress.page(i + 1);
+        BufferedImage image = raster.render(doc.getPage(i), i, dpi);
+        sink.write(i, outputFile + (i + 1) + "." + format, imageEncoder.encode(image, format));
+      }
     }
+    Metrics.timer("operation").stop(startTime);
+  }
 
-    PDFRenderer renderer = new PDFRenderer(doc);
-    for (int i = 0; i < doc.getNumberOfPages(); i++) {
-      System.out.println("Handle Page " + (i + 1) + "...");
-      BufferedImage image = renderer.renderImageWithDPI(i, dpi, ImageType.RGB);
-      // ImageIOUtil.writeImage(image, outputFile + (i + 1) + "." + format, dpi);
+  public static void pdfToImage(
+      InputFile input, String outputFile, String format, int dpi, boolean isZip, int threads)
+      throws IOException {
+    pdfToImage(
+        input,
+        outputFile,
+        format,
+        dpi,
+        ImageType.RGB,
+        isZip,
+        threads,
+        null,
+        ImageEncoder.defaults());
+  }
+
+  /**
+   * Renders the pages on the given number of threads. With a cache, only the pages which aren't
+   * in it are rendered, and the file isn't even loaded if every page is.
+   */
+  public static void pdfToImage(
+      InputFile input,
+      String outputFile,
+      String format,
+      int dpi,
+      ImageType imageType,
+      boolean isZip,
+      int threads,
+      ResultCache cache,
+      ImageEncoder imageEncoder)
+      throws IOException {
+    if (threads <= 1 && cache == null) {
+      try (PDDocument doc = input.load()) {
+        pdfToImage(doc, outputFile, format, dpi, imageType, isZip, imageEncoder);
+      }
+      return;
+    }
+
+    if (threads > 1) {
+      Progress.print("Start to convert PDF to images with " + threads + " threads...");
+    } else {
+      Progress.print("Start to convert PDF to images...");
     }
 
-    if (isZip) {
-      File[] images = new File[doc.getNumberOfPages()];
-      for (int i = 0; i < images.length; i++) {
-        images[i] = new File(outputFile + (i + 1) + "." + format);
+    outputFile = imageBaseName(outputFile);
+
+    long startTime = System.nanoTime();
+    String key =
+        (cache == null)
+            ? null
+            : cache.key(
+                "convert-to-images " + format + " " + dpi + " " + imageType + " " + imageEncoder,
+                input);
+    byte[] cachedPageNumber = (cache == null) ? null : cache.get(key + "|pages");
+    PDDocument first = null;
+    int pageNumber;
+
+    if (cachedPageNumber != null) {
+      pageNumber = Integer.parseInt(new String(cachedPageNumber, StandardCharsets.UTF_8));
+    } else {
+      first = input.load();
+      pageNumber = first.getNumberOfPages();
+      if (cache != null) {
+        cache.put(key + "|pages", String.valueOf(pageNumber).getBytes(StandardCharsets.UTF_8));
       }
-      zipFile(images, outputFile);
     }
+
+    // PDFBox documents and renderers are not thread-safe, so every worker renders from its own
+    // copy of the document. Pages are handed out one by one to keep the workers balanced, and a
+    // worker only loads its copy when it meets the first page that isn't cached.
+    AtomicInteger nextPage = new AtomicInteger();
+    ImageSink sink = ImageSink.open(outputFile, isZip, threads);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    List<Future<?>> workers = new ArrayList<>();
+
+    for (int i = 0; i < Math.max(threads, 1); i++) {
+      PDDocument workerDoc = (i == 0) ? first : null;
+      String imageFile = outputFile;
+      workers.add(
+          executor.submit(
+              () -> {
+                PDDocument doc = workerDoc;
+                PageRaster raster = null;
+                try {
+                  for (int page = nextPage.getAndIncrement();
+                      page < pageNumber;
+                      page = nextPage.getAndIncrement()) {
+                    Progress.page(page + 1);
+                    String pageKey = key + "|page " + page;
+                    byte[] data = (cache == null) ? null : cache.get(pageKey);
+
+                    if (data == null) {
+                      if (doc == null) {
+                        doc = input.load();
+                      }
+                      if (raster == null) {
+                        raster = new PageRaster(new PDFRenderer(doc), imageType);
+                      }
+
+                      BufferedImage image = raster.render(doc.getPage(page), page, dpi);
+                      data = imageEncoder.encode(image, format);
+                      if (cache != null) {
+                        cache.put(pageKey, data);
+                      }
+                    }
+
+                    sink.write(page, imageFile + (page + 1) + "." + format, data);
+                  }
+                } catch (Throwable e) {
+                  // The pages after the failed one mustn't wait for it
+                  sink.abort(e);
+                  throw e;
+                } finally {
+                  if (doc != null) {
+                    doc.close();
+                  }
+                }
+                return null;
+              }));
+    }
+
+    IOException failure = null;
+    try {
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = new IOException("Rendering was interrupted", e);
+    } catch (ExecutionException e) {
+      failure =
+          new IOException("Failed to render page: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+      awaitTermination(executor);
+    }
+
+    // A failure to close the sink mustn't hide the failure of a page
+    try {
+      sink.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        throw e;
+      }
+      failure.addSuppressed(e);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    Metrics.timer("operation").stop(startTime);
+  }
+
+  /**
+   * Renders every page in bands of the given number of rows into PNG files, so the heap only
+   * holds one band of a page instead of the whole page.
+   */
+  public static void pdfToBandedImages(
+      PDDocument doc,
+      String outputFile,
+      int dpi,
+      ImageType imageType,
+      int bandHeight,
+      ImageEncoder imageEncoder)
+      throws IOException {
+    Progress.print("Start to convert PDF to images in bands of " + bandHeight + " rows...");
+
+    outputFile = imageBaseName(outputFile);
+
+    long startTime = System.nanoTime();
+    BandRenderer renderer =
+        new BandRenderer(
+            new PDFRenderer(doc), bandHeight, imageType, imageEncoder.getPngEncoder());
+
+    try {
+      for (int i = 0; i < doc.getNumberOfPages(); i++) {
+        Progress.page(i + 1);
+        File imageFile = new File(outputFile + (i + 1) + ".png");
+
+        // The rows go straight to the file, the whole image is never in the heap
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(imageFile))) {
+          renderer.render(doc.getPage(i), i, dpi, out);
+        } catch (Throwable e) {
+          // A truncated file would look like a finished page
+          imageFile.delete();
+          throw e;
+        }
+        Metrics.count("bytes_written", imageFile.length());
+      }
+    } finally {
+      doc.close();
+    }
+    Metrics.timer("operation").stop(startTime);
   }
 
   public static void mergePDF(File outputFile, File... docs) throws IOException {
-    PDDocument[] pdocs = new PDDocument[docs.length];
+    InputFile[] inputs = new InputFile[docs.length];
 
     for (int i = 0; i < docs.length; i++) {
-      pdocs[i] = PDDocument.load(docs[i]);
+      inputs[i] = new InputFile(docs[i], null);
+    }
+
+    mergePDF(outputFile.getAbsolutePath(), inputs);
+  }
+
+  public static void mergePDF(String outputFile, InputFile... inputs) throws IOException {
+    mergePDF(outputFile, false, inputs);
+  }
+
+  public static void mergePDF(String outputFile, boolean isDedup, InputFile... inputs)
+      throws IOException {
+    Progress.print("Start to merge...");
+    long startTime = System.nanoTime();
+
+    // appendDocument copies everything it needs, so every source can be closed right after it
+    // is appended and only one of them is open at a time
+    PDFMergerUtility merger = new PDFMergerUtility();
+    PDDocument destination = inputs[0].load();
+
+    try {
+      for (int i = 1; i < inputs.length; i++) {
+        Progress.object("File", i + 1);
+        try (PDDocument source = inputs[i].load()) {
+          long appendTime = System.nanoTime();
+          merger.appendDocument(destination, source);
+          Metrics.timer("append_document").stop(appendTime);
+        }
+      }
+
+      if (!destination.isAllSecurityToBeRemoved()) {
+        destination.setAllSecurityToBeRemoved(true);
+      }
+      Metrics.timer("operation").stop(startTime);
+
+      if (isDedup) {
+        StreamDedup.dedup(destination);
+      }
+
+      save(destination, outputFile);
+    } finally {
+      destination.close();
     }
 
-    mergePDF(outputFile.getAbsolutePath(), pdocs);
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    Progress.print(
+        String.format(
+            "Merged %d files in %.2f s (%.1f files/s)",
+            inputs.length, seconds, inputs.length / seconds));
+  }
+
+  /**
+   * Appends the pages of the other files to the first one with an incremental update, so the
+   * first file is copied as it is, or not written at all if it is the output file. Only the pages
+   * are copied, like split does, without outlines or form fields.
+   */
+  public static void appendPages(String outputFile, InputFile... inputs) throws IOException {
+    Progress.print("Start to append pages...");
+    long startTime = System.nanoTime();
+
+    try (PDDocument destination = inputs[0].load()) {
+      for (int i = 1; i < inputs.length; i++) {
+        Progress.object("File", i + 1);
+        try (PDDocument source = inputs[i].load()) {
+          PageCopier copier = new PageCopier(destination);
+          for (PDPage page : source.getPages()) {
+            PDPage copy = copier.copyPage(page);
+            destination.addPage(copy);
+            IncrementalSave.markNewPage(destination, copy);
+          }
+          copier.finish();
+        }
+      }
+      Metrics.timer("operation").stop(startTime);
+
+      IncrementalSave.save(destination, inputs[0].getFile(), outputFile);
+    }
   }
 
   public static void mergePDF(String outputFile, PDDocument... docs) throws IOException {
-    System.out.println("Start to merge...");
+    Progress.print("Start to merge...");
 
     PDFMergerUtility merger = new PDFMergerUtility();
 
@@ -234,7 +818,7 @@ public class PDFOperation {
       docs[0].setAllSecurityToBeRemoved(true);
     }
 
-    docs[0].save(outputFile);
+    save(docs[0], outputFile);
     for (PDDocument doc : docs) {
       doc.close();
     }
@@ -242,81 +826,321 @@ public class PDFOperation {
 
   public static void extractImages(File doc, File outputFile, String format, int dpi, boolean isZip)
       throws IOException {
-    extractImages(PDDocument.load(doc), outputFile.getAbsolutePath(), format, dpi, isZip);
+    extractImages(
+        new InputFile(doc, null),
+        outputFile.getAbsolutePath(),
+        format,
+        dpi,
+        isZip,
+        1,
+        ImageEncoder.defaults());
   }
 
   public static void extractImages(
-      PDDocument doc, String outputFile, String format, int dpi, boolean isZip) throws IOException {
-    System.out.println("Start to extract images...");
-
-    if (outputFile.contains(".")) {
-      outputFile = outputFile.substring(0, outputFile.indexOf('.'));
+      InputFile input,
+      String outputFile,
+      String format,
+      int dpi,
+      boolean isZip,
+      int threads,
+      ImageEncoder imageEncoder)
+      throws IOException {
+    try (PDDocument doc = input.load()) {
+      extractImages(doc, outputFile, format, dpi, isZip, threads, imageEncoder);
     }
+  }
 
-    ExtractImages extracter = new ExtractImages(outputFile, format, dpi);
-    for (PDPage page : doc.getPages()) {
-      extracter.processPage(page);
-    }
+  public static void extractImages(
+      PDDocument doc, String outputFile, String format, int dpi, boolean isZip) throws IOException {
+    extractImages(doc, outputFile, format, dpi, isZip, 1);
+  }
+
+  public static void extractImages(
+      PDDocument doc, String outputFile, String format, int dpi, boolean isZip, int threads)
+      throws IOException {
+    extractImages(doc, outputFile, format, dpi, isZip, threads, ImageEncoder.defaults());
+  }
 
-    if (isZip) {
-      File[] files = new File[extracter.getTotalImageNumber()];
-      for (int i = 0; i < files.length; i++) {
-        files[i] = new File(outputFile + (i + 1) + "." + format);
+  public static void extractImages(
+      PDDocument doc,
+      String outputFile,
+      String format,
+      int dpi,
+      boolean isZip,
+      int threads,
+      ImageEncoder imageEncoder)
+      throws IOException {
+    Progress.print("Start to extract images...");
+
+    outputFile = imageBaseName(outputFile);
+
+    long startTime = System.nanoTime();
+    try (ImageSink sink = ImageSink.open(outputFile, isZip, threads)) {
+      ExtractImages extracter =
+          new ExtractImages(outputFile, format, dpi, sink, threads, imageEncoder);
+      try {
+        int pageNumber = 0;
+        for (PDPage page : doc.getPages()) {
+          Progress.page(++pageNumber);
+          extracter.processPage(page);
+        }
+      } catch (Throwable e) {
+        // A failure of the encoders mustn't hide the failure of a page
+        sink.abort(e);
+        try {
+          extracter.finish();
+        } catch (IOException finishFailure) {
+          e.addSuppressed(finishFailure);
+        }
+        throw e;
       }
-      zipFile(files, outputFile);
+      extracter.finish();
     }
+    Metrics.timer("operation").stop(startTime);
   }
 
   public static void splitPDF(File doc, String inputRange, File outputFile) throws IOException {
-    splitPDF(PDDocument.load(doc), inputRange, outputFile.getAbsolutePath());
+    splitPDF(new InputFile(doc, null).load(), inputRange, outputFile.getAbsolutePath());
   }
 
   public static void splitPDF(PDDocument doc, String inputRange, String outputFile)
       throws IOException {
-    System.out.println("Start to split...");
+    splitPDF(doc, inputRange, outputFile, 1);
+  }
+
+  public static void splitPDF(PDDocument doc, String inputRange, String outputFile, int threads)
+      throws IOException {
+    Progress.print("Start to split...");
 
-    String[] ranges = inputRange.split(",");
     outputFile = outputFile.endsWith(".pdf") ? outputFile.replace(".pdf", "") : outputFile;
-    List<PDDocument> docs = new ArrayList<>();
+    long startTime = System.nanoTime();
+    List<int[]> ranges = PageRanges.parse(inputRange, doc.getNumberOfPages());
+    int lastPage = 0;
+
+    // Ranges in the order of their first page, so the page loop only has to look at the next one
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < ranges.size(); i++) {
+      order.add(i);
+      lastPage = Math.max(lastPage, ranges.get(i)[1]);
+    }
+    order.sort(Comparator.comparingInt(i -> ranges.get(i)[0]));
+
+    PDDocument[] docs = new PDDocument[ranges.size()];
+    PageCopier[] copiers = new PageCopier[ranges.size()];
+    List<Integer> activeRanges = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    List<Future<?>> saves = new ArrayList<>();
+    int nextRange = 0, pageNumber = 0;
+
+    try {
+      // Walk the source once and copy every page into all the ranges it belongs to
+      for (PDPage page : doc.getPages()) {
+        pageNumber++;
+        if (pageNumber > lastPage) {
+          break;
+        }
+
+        while (nextRange < order.size() && ranges.get(order.get(nextRange))[0] == pageNumber) {
+          int range = order.get(nextRange++);
+          docs[range] = new PDDocument();
+          copiers[range] = new PageCopier(docs[range]);
+          copyDocumentProperties(doc, docs[range], copiers[range].getCloner());
+          activeRanges.add(range);
+        }
+
+        Progress.page(pageNumber);
+        Iterator<Integer> iterator = activeRanges.iterator();
+        while (iterator.hasNext()) {
+          int range = iterator.next();
+          docs[range].addPage(copiers[range].copyPage(page));
+
+          if (ranges.get(range)[1] == pageNumber) {
+            // The copies don't share anything with the source, so they can be saved meanwhile
+            copiers[range].finish();
+            iterator.remove();
+            saves.add(executor.submit(saveSplit(docs[range], outputFile + (range + 1) + ".pdf")));
+          }
+        }
+      }
 
-    for (String range : ranges) {
+      for (Future<?> save : saves) {
+        save.get();
+      }
+      Metrics.timer("operation").stop(startTime);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Split was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to save: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+      // A failed save must not close the documents the other saves are still writing
+      awaitTermination(executor);
+      for (PDDocument splitDoc : docs) {
+        if (splitDoc != null) {
+          splitDoc.close();
+        }
+      }
+    }
+  }
 
-      if (!range.contains("-")) {
-        // Single page
-        int pageNumber = Integer.parseInt(range);
+  /** Copies what Splitter copies to every split file: the version, /Info and viewer preferences. */
+  private static void copyDocumentProperties(
+      PDDocument source, PDDocument target, PDFCloneUtility cloner) throws IOException {
+    target.getDocument().setVersion(source.getDocument().getVersion());
+
+    COSDictionary info = source.getDocumentInformation().getCOSObject();
+    COSDictionary infoCopy = new COSDictionary();
+    for (COSName key : info.keySet()) {
+      COSBase value = info.getDictionaryObject(key);
+      // Like Splitter, /Info only holds text and dates
+      if (value != null && !(value instanceof COSDictionary)) {
+        infoCopy.setItem(key, cloner.cloneForNewDocument(value));
+      }
+    }
+    target.setDocumentInformation(new PDDocumentInformation(infoCopy));
+
+    // Cloned, so the split files which are saved at the same time don't share it
+    COSDictionary viewerPreferences =
+        source.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.VIEWER_PREFERENCES);
+    if (viewerPreferences != null) {
+      target
+          .getDocumentCatalog()
+          .getCOSObject()
+          .setItem(COSName.VIEWER_PREFERENCES, cloner.cloneForNewDocument(viewerPreferences));
+    }
+  }
 
-        Splitter splitter = new Splitter();
-        splitter.setStartPage(pageNumber);
-        splitter.setEndPage(pageNumber);
+  private static void awaitTermination(ExecutorService executor) {
+    boolean isInterrupted = false;
+    while (!executor.isTerminated()) {
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        isInterrupted = true;
+      }
+    }
 
-        docs.addAll(splitter.split(doc));
-      } else {
-        // More than one page
-        String[] startEnd = range.split("-");
-        int start = range.startsWith("-") ? 1 : Integer.parseInt(startEnd[0]);
-        int end = range.endsWith("-") ? doc.getNumberOfPages() : Integer.parseInt(startEnd[1]);
+    if (isInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static Callable<Void> saveSplit(PDDocument doc, String outputFile) {
+    return () -> {
+      save(doc, outputFile);
+      doc.close();
+      return null;
+    };
+  }
+
+  /** Copies pages into one split file, pointing the links between them to the copies. */
+  private static class PageCopier {
+
+    private final PDFCloneUtility cloner;
+    private final Map<COSDictionary, COSDictionary> copiedPages = new IdentityHashMap<>();
+    // The destinations of the copied links, with the source page they point to
+    private final Map<COSArray, COSDictionary> destinations = new IdentityHashMap<>();
+
+    PageCopier(PDDocument target) {
+      cloner = new PDFCloneUtility(target);
+    }
+
+    PDFCloneUtility getCloner() {
+      return cloner;
+    }
+
+    PDPage copyPage(PDPage page) throws IOException {
+      COSDictionary pageDict = new COSDictionary(page.getCOSObject());
+
+      // The copy leaves the page tree, so the inherited attributes have to be set on itself, and
+      // nothing may point back into the source tree or every page would be cloned with it
+      pageDict.removeItem(COSName.PARENT);
+      pageDict.removeItem(COSName.B);
+      pageDict.setItem(COSName.RESOURCES, page.getResources());
+      pageDict.setItem(COSName.MEDIA_BOX, page.getMediaBox());
+      pageDict.setItem(COSName.CROP_BOX, page.getCropBox());
+      pageDict.setInt(COSName.ROTATE, page.getRotation());
+
+      COSArray annotations = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+      if (annotations != null) {
+        COSArray annotationCopies = new COSArray();
+        for (int i = 0; i < annotations.size(); i++) {
+          COSBase annotation = annotations.getObject(i);
+          if (annotation instanceof COSDictionary) {
+            annotationCopies.add(copyAnnotation((COSDictionary) annotation));
+          }
+        }
+        pageDict.setItem(COSName.ANNOTS, annotationCopies);
+      }
 
-        Splitter splitter = new Splitter();
-        splitter.setStartPage(start);
-        splitter.setEndPage(end);
-        splitter.setSplitAtPage(doc.getNumberOfPages());
+      COSDictionary copy = (COSDictionary) cloner.cloneForNewDocument(pageDict);
+      copiedPages.put(page.getCOSObject(), copy);
+      return new PDPage(copy);
+    }
+
+    /**
+     * Points the copied links to the copies of their pages. Like Splitter, a link to a page which
+     * isn't in the split file keeps no page.
+     */
+    void finish() throws IOException {
+      for (Map.Entry<COSArray, COSDictionary> destination : destinations.entrySet()) {
+        COSArray copy = (COSArray) cloner.cloneForNewDocument(destination.getKey());
+        COSDictionary page = copiedPages.get(destination.getValue());
+        copy.set(0, (page == null) ? COSNull.NULL : page);
+      }
+    }
+
+    private COSDictionary copyAnnotation(COSDictionary annotation) {
+      COSDictionary copy = new COSDictionary(annotation);
+
+      // Like Splitter, drop the links to the page, form fields and popups
+      copy.removeItem(COSName.P);
+      copy.removeItem(COSName.PARENT);
+      copy.removeItem(COSName.getPDFName("Popup"));
+      copy.removeItem(COSName.getPDFName("IRT"));
+
+      COSBase destination = copy.getDictionaryObject(COSName.DEST);
+      if (destination instanceof COSArray) {
+        copy.setItem(COSName.DEST, copyDestination((COSArray) destination));
+      }
 
-        docs.addAll(splitter.split(doc));
+      COSDictionary action = copy.getCOSDictionary(COSName.A);
+      if (action != null && COSName.getPDFName("GoTo").equals(action.getCOSName(COSName.S))) {
+        COSBase actionDestination = action.getDictionaryObject(COSName.D);
+        if (actionDestination instanceof COSArray) {
+          COSDictionary actionCopy = new COSDictionary(action);
+          actionCopy.setItem(COSName.D, copyDestination((COSArray) actionDestination));
+          copy.setItem(COSName.A, actionCopy);
+        }
       }
+
+      return copy;
     }
-    for (int i = 0; i < docs.size(); i++) {
-      docs.get(i).save(outputFile + (i + 1) + ".pdf");
-      docs.get(i).close();
+
+    private COSArray copyDestination(COSArray destination) {
+      COSArray copy = new COSArray();
+      copy.addAll(destination);
+
+      // The page is set once every page of the split file is copied, and must not be cloned
+      // with the annotation, or it would take the source page tree with it
+      COSBase page = destination.getObject(0);
+      if (page instanceof COSDictionary) {
+        copy.set(0, COSNull.NULL);
+        destinations.put(copy, (COSDictionary) page);
+      }
+
+      return copy;
     }
   }
 
   public static void imageToPDF(String outputFile, BufferedImage... inputImages)
       throws IOException {
-    System.out.println("Start to convert images to PDF...");
+    Progress.print("Start to convert images to PDF...");
     PDDocument doc = new PDDocument();
 
     for (int i = 0; i < inputImages.length; i++) {
-      System.out.println("Handle Image " + (i + 1) + "...");
+      Progress.object("Image", i + 1);
       PDPage page =
           new PDPage(new PDRectangle(inputImages[i].getWidth(), inputImages[i].getHeight()));
       doc.addPage(page);
@@ -327,33 +1151,85 @@ public class PDFOperation {
       contentStream.close();
     }
 
-    doc.save(outputFile);
+    save(doc, outputFile);
     doc.close();
   }
 
-  private static void zipFile(File[] files, String outputFile) throws IOException {
-    System.out.println("Start to zip files...");
-    outputFile = (outputFile.endsWith(".zip")) ? outputFile : outputFile + ".zip";
+  public static void imageToPDF(String outputFile, int threads, File... inputImages)
+      throws IOException {
+    Progress.print("Start to convert images to PDF...");
+
+    // Images are decoded and encoded on the workers while the pages are added in order. Only a
+    // few images are ahead of the page being added, so the heap holds a few images at a time.
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+    Deque<Future<EncodedImage>> pendingImages = new ArrayDeque<>();
+    int window = Math.max(threads, 1) * 2, nextImage = 0;
+    long startTime = System.nanoTime();
+    PDDocument doc = new PDDocument();
+
+    try {
+      for (int i = 0; i < inputImages.length; i++) {
+        while (nextImage < inputImages.length && pendingImages.size() < window) {
+          File inputImage = inputImages[nextImage++];
+          pendingImages.add(executor.submit(() -> EncodedImage.encode(inputImage)));
+        }
+
+        EncodedImage image = pendingImages.poll().get();
+
+        Progress.object("Image", i + 1);
+        PDPage page = new PDPage(new PDRectangle(image.getWidth(), image.getHeight()));
+        doc.addPage(page);
+
+        PDPageContentStream contentStream = new PDPageContentStream(doc, page);
+        contentStream.drawImage(image.toXObject(doc), 0, 0);
+        contentStream.close();
+      }
+      Metrics.timer("operation").stop(startTime);
+
+      save(doc, outputFile);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Conversion was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to read image: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+      doc.close();
+    }
+  }
 
-    FileOutputStream fos = new FileOutputStream(outputFile);
-    ZipOutputStream zos = new ZipOutputStream(fos);
+  /**
+   * Returns the output file without the extension of its last path segment. The page number and
+   * the image format are appended to it for every image.
+   */
+  static String imageBaseName(String outputFile) {
+    int nameIndex =
+        Math.max(outputFile.lastIndexOf('/'), outputFile.lastIndexOf(File.separatorChar));
+    int index = outputFile.lastIndexOf('.');
+    return (index > nameIndex + 1) ? outputFile.substring(0, index) : outputFile;
+  }
 
-    for (int i = 0; i < files.length; i++) {
-      System.out.println("Handle Image " + (i + 1));
-      FileInputStream fis = new FileInputStream(files[i]);
-      ZipEntry entry = new ZipEntry(files[i].getName());
-      zos.putNextEntry(entry);
+  /** Saves the document and records the time and the size of the file. */
+  static void save(PDDocument doc, String outputFile) throws IOException {
+    save(doc, outputFile, 1, MemoryUsageSetting.setupMainMemoryOnly());
+  }
 
-      byte[] bytes = new byte[1024];
-      int length;
-      while ((length = fis.read(bytes)) >= 0) {
-        zos.write(bytes, 0, length);
+  /**
+   * Saves the document, encrypting its streams with the given number of threads. The memory
+   * setting is the one the document was loaded with.
+   */
+  static void save(
+      PDDocument doc, String outputFile, int threads, MemoryUsageSetting memoryUsage)
+      throws IOException {
+    long startTime = System.nanoTime();
+    if (threads > 1) {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+        StreamCrypto.save(doc, out, threads, memoryUsage);
       }
-      // Remove origin file
-      files[i].delete();
-      fis.close();
+    } else {
+      doc.save(outputFile);
     }
-    zos.close();
-    fos.close();
+    Metrics.timer("save").stop(startTime);
+    Metrics.count("bytes_written", new File(outputFile).length());
   }
 }
@@ -0,0 +1,99 @@
+package pdftool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Applies several operations to one loaded document and saves it once, instead of saving and
+ * reloading it between every operation.
+ */
+public class PDFPipeline {
+
+  public interface Step {
+    void apply(PDDocument doc) throws IOException;
+  }
+
+  private final List<String> names = new ArrayList<>();
+  private final List<Step> steps = new ArrayList<>();
+
+  public PDFPipeline then(String name, Step step) {
+    names.add(name);
+    steps.add(step);
+    return this;
+  }
+
+  public PDFPipeline decrypt() {
+    return then("decrypt", PDFOperation::decrypt);
+  }
+
+  public PDFPipeline removePages(String ranges) {
+    return then(
+        "remove-pages " + ranges,
+        doc ->
+            PDFOperation.removePages(doc, PageRanges.toBitSet(ranges, doc.getNumberOfPages())));
+  }
+
+  public PDFPipeline rotate(int degree) {
+    return then("rotate " + degree, doc -> PDFOperation.rotate(doc, degree));
+  }
+
+  public PDFPipeline encrypt(String password, int keyLength, String... permissions) {
+    return then(
+        "encrypt", doc -> PDFOperation.encrypt(doc, password, keyLength, permissions));
+  }
+
+  /**
+   * Builds a pipeline from steps like 'decrypt', 'remove-pages=1-3', 'rotate=90',
+   * 'set-password=PASSWORD' or 'limit-permission=PRINT,MODIFY'.
+   */
+  public static PDFPipeline parse(int keyLength, String... steps) {
+    PDFPipeline pipeline = new PDFPipeline();
+
+    for (String step : steps) {
+      int index = step.indexOf('=');
+      String name = (index < 0) ? step : step.substring(0, index);
+      String argument = (index < 0) ? null : step.substring(index + 1);
+
+      if (name.equals("decrypt")) {
+        pipeline.decrypt();
+      } else if (name.equals("remove-pages") && argument != null) {
+        pipeline.removePages(argument);
+      } else if (name.equals("rotate") && argument != null) {
+        pipeline.rotate(Integer.parseInt(argument));
+      } else if (name.equals("set-password") && argument != null) {
+        pipeline.encrypt(argument, keyLength);
+      } else if (name.equals("limit-permission") && argument != null) {
+        pipeline.encrypt("", keyLength, argument.split(","));
+      } else {
+        throw new IllegalArgumentException("Invalid step '" + step + "'.");
+      }
+    }
+
+    return pipeline;
+  }
+
+  public void run(InputFile input, String outputFile) throws IOException {
+    run(input, outputFile, 1);
+  }
+
+  /** Runs the steps, encrypting the streams of the output with the given number of threads. */
+  public void run(InputFile input, String outputFile, int threads) throws IOException {
+    Progress.print("Start to run " + steps.size() + " steps...");
+
+    PDDocument doc = input.load();
+    try {
+      for (int i = 0; i < steps.size(); i++) {
+        Progress.print("Step " + (i + 1) + ": " + names.get(i));
+        long startTime = System.nanoTime();
+        steps.get(i).apply(doc);
+        Metrics.timer("operation").stop(startTime);
+      }
+
+      PDFOperation.save(doc, outputFile, threads, input.getMemoryUsage());
+    } finally {
+      doc.close();
+    }
+  }
+}
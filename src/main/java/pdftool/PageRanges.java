@@ -0,0 +1,53 @@
+package pdftool;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class PageRanges {
+
+  /**
+   * Parses comma separated ranges like '1-3', '5', '3-' or '-3' into {start, end} pairs. Page
+   * numbers start at 1, and an end after the last page stops at the last page.
+   */
+  public static List<int[]> parse(String ranges, int pageNumber) {
+    List<int[]> result = new ArrayList<>();
+
+    for (String range : ranges.split(",")) {
+      range = range.trim();
+      int start, end;
+
+      if (!range.contains("-")) {
+        // Single page
+        start = Integer.parseInt(range);
+        end = start;
+      } else {
+        // More than one page
+        String[] startEnd = range.split("-");
+        start = range.startsWith("-") ? 1 : Integer.parseInt(startEnd[0].trim());
+        end = range.endsWith("-") ? pageNumber : Integer.parseInt(startEnd[1].trim());
+      }
+
+      end = Math.min(end, pageNumber);
+      if (start < 1 || start > end) {
+        throw new IllegalArgumentException(
+            "Invalid page range '" + range + "'. The PDF file has " + pageNumber + " pages.");
+      }
+
+      result.add(new int[] {start, end});
+    }
+
+    return result;
+  }
+
+  /** Returns the pages of the ranges as a set of page indices starting at 0. */
+  public static BitSet toBitSet(String ranges, int pageNumber) {
+    BitSet pages = new BitSet(pageNumber);
+
+    for (int[] range : parse(ranges, pageNumber)) {
+      pages.set(range[0] - 1, range[1]);
+    }
+
+    return pages;
+  }
+}
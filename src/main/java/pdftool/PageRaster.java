@@ -0,0 +1,129 @@
+package pdftool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.blend.BlendMode;
+import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.rendering.RenderDestination;
+
+/**
+ * Renders the pages of a document into one image, which is only replaced when a page doesn't fit
+ * into it. A 300 dpi A4 page takes about 35 MB, so a new image for every page keeps the garbage
+ * collector busy. Every thread needs its own raster, and the returned image is only valid until
+ * the next page is rendered.
+ */
+public class PageRaster {
+
+  private final PDFRenderer renderer;
+  private final ImageType imageType;
+  private BufferedImage image;
+
+  public PageRaster(PDFRenderer renderer) {
+    this(renderer, ImageType.RGB);
+  }
+
+  /** The image type can be RGB, GRAY or BINARY. */
+  public PageRaster(PDFRenderer renderer, ImageType imageType) {
+    this.renderer = renderer;
+    this.imageType = imageType;
+  }
+
+  public BufferedImage render(PDPage page, int pageIndex, int dpi) throws IOException {
+    long startTime = System.nanoTime();
+
+    if (hasBlendMode(page)) {
+      // Blend modes are rendered on a transparent image first, which only renderImage does
+      BufferedImage image = renderer.renderImageWithDPI(pageIndex, dpi, imageType);
+      Metrics.timer("render_page").stop(startTime);
+      return image;
+    }
+
+    int[] size = getSize(page, dpi);
+    // Drawn straight into an image of the wanted type, like renderImage, so BINARY pages are
+    // rendered without anti-aliasing instead of being thresholded afterwards
+    image = reuse(image, size[0], size[1], toBufferedImageType(imageType));
+    BufferedImage pageImage = crop(image, size[0], size[1]);
+
+    Graphics2D g = pageImage.createGraphics();
+    try {
+      g.setBackground(Color.WHITE);
+      g.clearRect(0, 0, size[0], size[1]);
+      // The same destination as renderImage, which would draw some annotations differently
+      renderer.renderPageToGraphics(pageIndex, g, dpi / 72f, dpi / 72f, RenderDestination.EXPORT);
+    } finally {
+      g.dispose();
+    }
+
+    Metrics.timer("render_page").stop(startTime);
+    return pageImage;
+  }
+
+  /** Returns the width and height of the rendered page, the same as PDFRenderer.renderImage. */
+  static int[] getSize(PDPage page, int dpi) {
+    PDRectangle cropBox = page.getCropBox();
+    float scale = dpi / 72f;
+    int widthPx = (int) Math.max(Math.floor(cropBox.getWidth() * scale), 1);
+    int heightPx = (int) Math.max(Math.floor(cropBox.getHeight() * scale), 1);
+
+    if (page.getRotation() == 90 || page.getRotation() == 270) {
+      return new int[] {heightPx, widthPx};
+    }
+    return new int[] {widthPx, heightPx};
+  }
+
+  /** The BufferedImage type that PDFRenderer.renderImage renders the image type on. */
+  static int toBufferedImageType(ImageType imageType) {
+    switch (imageType) {
+      case GRAY:
+        return BufferedImage.TYPE_BYTE_GRAY;
+      case BINARY:
+        return BufferedImage.TYPE_BYTE_BINARY;
+      case ARGB:
+        return BufferedImage.TYPE_INT_ARGB;
+      default:
+        return BufferedImage.TYPE_INT_RGB;
+    }
+  }
+
+  /** Returns the image if it is big enough, otherwise a new one which is. */
+  static BufferedImage reuse(BufferedImage image, int width, int height, int type) {
+    if (image != null && image.getWidth() >= width && image.getHeight() >= height) {
+      return image;
+    }
+
+    int oldWidth = (image == null) ? 0 : image.getWidth();
+    int oldHeight = (image == null) ? 0 : image.getHeight();
+    Metrics.count("raster_allocations", 1);
+    return new BufferedImage(Math.max(width, oldWidth), Math.max(height, oldHeight), type);
+  }
+
+  static BufferedImage crop(BufferedImage image, int width, int height) {
+    return (image.getWidth() == width && image.getHeight() == height)
+        ? image
+        : image.getSubimage(0, 0, width, height);
+  }
+
+  static boolean hasBlendMode(PDPage page) {
+    PDResources resources = page.getResources();
+    if (resources == null) {
+      return false;
+    }
+
+    for (COSName name : resources.getExtGStateNames()) {
+      PDExtendedGraphicsState state = resources.getExtGState(name);
+      if (state != null && state.getBlendMode() != BlendMode.NORMAL) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,304 @@
+package pdftool;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes PNG images with the given deflate level and row filter, which ImageIO doesn't let us
+ * choose. RGB, grey and black-and-white images are written without converting them first.
+ */
+public class PngEncoder {
+
+  /** The row filters of PNG. ADAPTIVE chooses the filter of every row like ImageIO and libpng. */
+  public enum Filter {
+    NONE,
+    SUB,
+    UP,
+    AVERAGE,
+    PAETH,
+    ADAPTIVE
+  }
+
+  private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+  static final int COLOR_GRAY = 0, COLOR_RGB = 2, COLOR_RGBA = 6;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final int level;
+  private final Filter filter;
+
+  /** The level goes from 0 (no compression) to 9 (smallest file). */
+  public PngEncoder(int level, Filter filter) {
+    this.level = level;
+    this.filter = filter;
+  }
+
+  public byte[] encode(BufferedImage image) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    encode(image, bytes);
+    return bytes.toByteArray();
+  }
+
+  public void encode(BufferedImage image, OutputStream out) throws IOException {
+    int width = image.getWidth(), height = image.getHeight();
+    int colorType, bitDepth;
+
+    if (image.getType() == BufferedImage.TYPE_BYTE_BINARY
+        && image.getColorModel().getPixelSize() == 1) {
+      colorType = COLOR_GRAY;
+      bitDepth = 1;
+    } else if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+      colorType = COLOR_GRAY;
+      bitDepth = 8;
+    } else {
+      colorType = image.getColorModel().hasAlpha() ? COLOR_RGBA : COLOR_RGB;
+      bitDepth = 8;
+    }
+
+    Rows rows = start(out, width, height, colorType, bitDepth);
+    Raster raster = image.getRaster();
+    int[] pixels = new int[width];
+
+    for (int y = 0; y < height; y++) {
+      byte[] row = rows.row();
+
+      if (colorType == COLOR_GRAY) {
+        raster.getSamples(0, y, width, 1, 0, pixels);
+        if (bitDepth == 1) {
+          for (int x = 0; x < width; x++) {
+            row[x >> 3] |= (byte) ((pixels[x] & 1) << (7 - (x & 7)));
+          }
+        } else {
+          for (int x = 0; x < width; x++) {
+            row[x] = (byte) pixels[x];
+          }
+        }
+      } else {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+          // The pixels of the rendered pages are copied straight from the raster
+          raster.getDataElements(0, y, width, 1, pixels);
+        } else {
+          image.getRGB(0, y, width, 1, pixels, 0, width);
+        }
+        toBytes(pixels, width, colorType == COLOR_RGBA, row);
+      }
+
+      rows.write();
+    }
+
+    rows.finish();
+  }
+
+  /**
+   * Starts an image which is written row by row: fill {@link Rows#row()}, then call {@link
+   * Rows#write()}, and {@link Rows#finish()} after the last row.
+   */
+  Rows start(OutputStream out, int width, int height, int colorType, int bitDepth)
+      throws IOException {
+    return new Rows(out, width, height, colorType, bitDepth);
+  }
+
+  static void toBytes(int[] pixels, int width, boolean hasAlpha, byte[] row) {
+    int i = 0;
+    for (int x = 0; x < width; x++) {
+      int pixel = pixels[x];
+      row[i++] = (byte) (pixel >> 16);
+      row[i++] = (byte) (pixel >> 8);
+      row[i++] = (byte) pixel;
+      if (hasAlpha) {
+        row[i++] = (byte) (pixel >>> 24);
+      }
+    }
+  }
+
+  class Rows {
+
+    private final ChunkOutputStream chunks;
+    private final Deflater deflater;
+    private final DeflaterOutputStream data;
+    private final int bytesPerPixel;
+    private byte[] row, previousRow;
+    // One row for every filter, the first byte is the filter type
+    private final byte[][] filtered = new byte[5][];
+
+    private Rows(OutputStream out, int width, int height, int colorType, int bitDepth)
+        throws IOException {
+      int channels = (colorType == COLOR_RGBA) ? 4 : (colorType == COLOR_RGB) ? 3 : 1;
+      int rowBytes = (width * channels * bitDepth + 7) / 8;
+      bytesPerPixel = Math.max(channels * bitDepth / 8, 1);
+      row = new byte[rowBytes];
+      previousRow = new byte[rowBytes];
+      for (int i = 0; i < filtered.length; i++) {
+        filtered[i] = new byte[rowBytes + 1];
+        filtered[i][0] = (byte) i;
+      }
+
+      out.write(SIGNATURE);
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream headerData = new DataOutputStream(header);
+      headerData.writeInt(width);
+      headerData.writeInt(height);
+      headerData.writeByte(bitDepth);
+      headerData.writeByte(colorType);
+      headerData.writeByte(0);
+      headerData.writeByte(0);
+      headerData.writeByte(0);
+      writeChunk(out, "IHDR", header.toByteArray(), header.size());
+
+      chunks = new ChunkOutputStream(out);
+      deflater = new Deflater(level);
+      data = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+    }
+
+    /** Returns the buffer of the next row, cleared. */
+    byte[] row() {
+      Arrays.fill(row, (byte) 0);
+      return row;
+    }
+
+    void write() throws IOException {
+      data.write(filter(), 0, row.length + 1);
+
+      byte[] swap = previousRow;
+      previousRow = row;
+      row = swap;
+    }
+
+    void finish() throws IOException {
+      try {
+        data.finish();
+        chunks.flushChunk();
+        writeChunk(chunks.out, "IEND", new byte[0], 0);
+      } finally {
+        deflater.end();
+      }
+    }
+
+    private byte[] filter() {
+      if (filter != Filter.ADAPTIVE) {
+        return filter(filter.ordinal());
+      }
+
+      // Like libpng, the filter with the smallest sum of the signed bytes is the best guess
+      byte[] best = null;
+      long bestSum = Long.MAX_VALUE;
+      for (int type = 0; type < filtered.length; type++) {
+        byte[] candidate = filter(type);
+        long sum = 0;
+        for (int i = 1; i < candidate.length && sum < bestSum; i++) {
+          sum += Math.abs(candidate[i]);
+        }
+        if (sum < bestSum) {
+          best = candidate;
+          bestSum = sum;
+        }
+      }
+
+      return best;
+    }
+
+    private byte[] filter(int type) {
+      byte[] out = filtered[type];
+      int bpp = bytesPerPixel;
+
+      for (int i = 0; i < row.length; i++) {
+        int x = row[i] & 0xff;
+        int a = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+        int b = previousRow[i] & 0xff;
+        int c = (i >= bpp) ? previousRow[i - bpp] & 0xff : 0;
+
+        switch (type) {
+          case 0:
+            out[i + 1] = (byte) x;
+            break;
+          case 1:
+            out[i + 1] = (byte) (x - a);
+            break;
+          case 2:
+            out[i + 1] = (byte) (x - b);
+            break;
+          case 3:
+            out[i + 1] = (byte) (x - ((a + b) >> 1));
+            break;
+          default:
+            out[i + 1] = (byte) (x - paeth(a, b, c));
+        }
+      }
+
+      return out;
+    }
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+    if (pa <= pb && pa <= pc) {
+      return a;
+    }
+    return (pb <= pc) ? b : c;
+  }
+
+  private static void writeChunk(OutputStream out, String type, byte[] data, int length)
+      throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+
+    DataOutputStream chunk = new DataOutputStream(out);
+    chunk.writeInt(length);
+    chunk.write(typeBytes);
+    chunk.write(data, 0, length);
+    chunk.writeInt((int) crc.getValue());
+  }
+
+  /** Cuts the compressed data into IDAT chunks. */
+  private static class ChunkOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int length;
+
+    private ChunkOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (length == buffer.length) {
+        flushChunk();
+      }
+      buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (length == buffer.length) {
+          flushChunk();
+        }
+        int n = Math.min(len, buffer.length - length);
+        System.arraycopy(b, off, buffer, length, n);
+        length += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void flushChunk() throws IOException {
+      if (length > 0) {
+        writeChunk(out, "IDAT", buffer, length);
+        length = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package pdftool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Prints a line for every page, image or file an operation handles. Writing to the console for
+ * every page costs time on big documents, so it only prints in verbose mode. Operations run as a
+ * {@link Job} print nothing and report to its listener instead.
+ */
+public class Progress {
+
+  // Both are inherited by the threads an operation starts for its pages. Verbose mode is set per
+  // thread, so the jobs the daemon or batch mode run at the same time don't switch each other's.
+  private static final InheritableThreadLocal<Boolean> verbose =
+      new InheritableThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+          return false;
+        }
+      };
+  private static final InheritableThreadLocal<Job> currentJob = new InheritableThreadLocal<>();
+
+  /** Sets verbose mode for the calling thread and the threads it starts afterwards. */
+  public static void setVerbose(boolean verbose) {
+    Progress.verbose.set(verbose);
+  }
+
+  public static boolean isVerbose() {
+    return verbose.get();
+  }
+
+  /** Prints a message of an operation, which isn't printed when the operation runs as a job. */
+  public static void print(String message) {
+    if (currentJob.get() == null) {
+      System.out.println(message);
+    }
+  }
+
+  public static void log(String message) {
+    if (verbose.get() && currentJob.get() == null) {
+      System.out.println(message);
+    }
+  }
+
+  /** Reports the page with the given number, counted from 1. A cancelled job stops here. */
+  public static void page(int pageNumber) {
+    Job job = currentJob.get();
+    if (job == null) {
+      log("Handle Page " + pageNumber + "...");
+      return;
+    }
+
+    job.checkCancelled();
+    job.listener.onPage(pageNumber);
+  }
+
+  /**
+   * Reports an object like an "Image", a "File" or a "Stream", counted from 1 for every kind. A
+   * cancelled job stops here.
+   */
+  public static void object(String kind, int number) {
+    Job job = currentJob.get();
+    if (job == null) {
+      log("Handle " + kind + " " + number + "...");
+      return;
+    }
+
+    job.checkCancelled();
+    job.listener.onObject(kind, number);
+  }
+
+  /** Closes the document when the job it was loaded by ends. */
+  static void opened(PDDocument doc) {
+    Job job = currentJob.get();
+    if (job != null) {
+      job.opened(doc);
+    }
+  }
+
+  /**
+   * An operation with a listener, which can be cancelled from any thread. It stops at the next
+   * page or object it reports, and the documents it loaded are closed.
+   */
+  static class Job {
+
+    private final ProgressListener listener;
+    private final List<PDDocument> documents = new ArrayList<>();
+    private volatile boolean isCancelled, isFinished;
+
+    Job(ProgressListener listener) {
+      this.listener = listener;
+    }
+
+    void cancel() {
+      isCancelled = true;
+    }
+
+    boolean isCancelled() {
+      return isCancelled;
+    }
+
+    /** Runs the operation on the calling thread as this job. */
+    <T> T run(Callable<T> operation) throws Exception {
+      currentJob.set(this);
+      try {
+        return operation.call();
+      } finally {
+        isFinished = true;
+        currentJob.remove();
+        closeDocuments();
+      }
+    }
+
+    private void checkCancelled() {
+      // Threads of a finished job may still report, but there is nothing left to stop
+      if (isCancelled && !isFinished) {
+        throw new CancellationException("The operation was cancelled");
+      }
+    }
+
+    private synchronized void opened(PDDocument doc) {
+      documents.add(doc);
+    }
+
+    private synchronized void closeDocuments() {
+      // Closing a document twice does nothing, so the ones the operation closed don't matter
+      for (PDDocument doc : documents) {
+        IOUtils.closeQuietly(doc);
+      }
+      documents.clear();
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package pdftool;
+
+/**
+ * Gets the progress of an operation run by {@link AsyncPDFOperation}. It is called on the threads
+ * of the operation, which can be more than one at the same time.
+ */
+public interface ProgressListener {
+
+  ProgressListener NONE = new ProgressListener() {};
+
+  /** A page is handled, counted from 1. */
+  default void onPage(int pageNumber) {}
+
+  /** An object like an "Image", a "File" or a "Stream" is handled, counted from 1 for each kind. */
+  default void onObject(String kind, int number) {}
+}
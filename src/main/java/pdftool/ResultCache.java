@@ -0,0 +1,86 @@
+package pdftool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the output of operations in a {@link DiskCache}, keyed by the content of the inputs, their
+ * passwords, the operation and its parameters. Running the same operation on the same content
+ * again only copies the stored output.
+ */
+public class ResultCache {
+
+  private final DiskCache cache;
+  // Content hashes by path, length and modification time, so a file is only read once
+  private final ConcurrentMap<String, String> contentHashes = new ConcurrentHashMap<>();
+
+  public ResultCache(DiskCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the key of an operation. The operation has to contain every parameter that changes
+   * the output.
+   */
+  public String key(String operation, InputFile... inputs) throws IOException {
+    StringBuilder key = new StringBuilder(operation);
+
+    for (InputFile input : inputs) {
+      key.append('|').append(contentHash(input.getFile()));
+      // A password protected file must not be readable through the cache without its password
+      key.append('|').append((input.getPassword() == null) ? "" : input.getPassword());
+    }
+
+    return key.toString();
+  }
+
+  public String key(String operation, File... inputs) throws IOException {
+    StringBuilder key = new StringBuilder(operation);
+
+    for (File input : inputs) {
+      key.append('|').append(contentHash(input));
+    }
+
+    return key.toString();
+  }
+
+  /** Copies the stored outputs to the files, returns false if one of them isn't stored. */
+  public boolean restore(String key, List<File> outputs) {
+    for (int i = 0; i < outputs.size(); i++) {
+      if (!cache.copyTo(key + "|" + i, outputs.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public void store(String key, List<File> outputs) throws IOException {
+    for (int i = 0; i < outputs.size(); i++) {
+      cache.putFile(key + "|" + i, outputs.get(i));
+    }
+  }
+
+  public byte[] get(String key) {
+    return cache.get(key);
+  }
+
+  public void put(String key, byte[] data) throws IOException {
+    cache.put(key, data);
+  }
+
+  private String contentHash(File file) throws IOException {
+    String fileKey = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+    String hash = contentHashes.get(fileKey);
+
+    if (hash == null) {
+      hash = DiskCache.hashFile(file);
+      contentHashes.put(fileKey, hash);
+    }
+
+    return hash;
+  }
+}
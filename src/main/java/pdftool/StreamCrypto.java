@@ -0,0 +1,401 @@
+package pdftool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.encryption.DecryptionMaterial;
+import org.apache.pdfbox.pdmodel.encryption.PDEncryption;
+import org.apache.pdfbox.pdmodel.encryption.SecurityHandler;
+import org.apache.pdfbox.pdmodel.encryption.StandardDecryptionMaterial;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.encryption.StandardSecurityHandler;
+
+/**
+ * Encrypts and decrypts the streams of a document on several threads. PDFBox does it for one
+ * stream after the other while it parses or saves the document, which takes most of the time of
+ * encrypting or decrypting documents with many images.
+ *
+ * <p>Streams are decrypted after the parser has read every object, and encrypted before the
+ * document is saved, with the object numbers the writer gives them. A first pass of the writer
+ * without output finds these numbers. Every thread has its own PDFBox security handler, prepared
+ * from the encryption dictionary with the password, so the streams are encrypted and decrypted
+ * the same way as PDFBox does it on its own. AES still uses a random initialization vector for
+ * every stream, like PDFBox.
+ *
+ * <p>Every thread copies the stream it works on into its own scratch file, which gets a share of
+ * the memory setting of the document and spills the rest to disk, so the threads together don't
+ * keep more on the heap than the document may.
+ */
+public class StreamCrypto {
+
+  private final int threads;
+  private final PDEncryption encryption;
+  private final COSArray documentId;
+  private final String password;
+  private final MemoryUsageSetting memoryUsage;
+  // The scratch file of the document can't be used by several threads at once
+  private final Object scratchLock = new Object();
+
+  private StreamCrypto(
+      int threads,
+      PDEncryption encryption,
+      COSArray documentId,
+      String password,
+      MemoryUsageSetting memoryUsage) {
+    this.threads = threads;
+    this.encryption = encryption;
+    this.documentId = documentId;
+    this.password = password;
+    this.memoryUsage = memoryUsage;
+  }
+
+  /**
+   * Protects the document like PDDocument.protect, so it can be saved with {@link
+   * #save(PDDocument, OutputStream, int)}.
+   */
+  public static void protect(PDDocument doc, StandardProtectionPolicy policy) throws IOException {
+    doc.protect(policy);
+
+    PDEncryption encryption = doc.getEncryption();
+    if (encryption != null && encryption.hasSecurityHandler()) {
+      encryption.setSecurityHandler(
+          new EncryptingHandler(encryption.getSecurityHandler(), policy.getUserPassword()));
+    }
+  }
+
+  /**
+   * Saves the document like PDDocument.save, and encrypts its streams with the given number of
+   * threads first if it was protected with {@link #protect(PDDocument,
+   * StandardProtectionPolicy)}. The memory setting is the one the document was loaded with.
+   */
+  public static void save(
+      PDDocument doc, OutputStream out, int threads, MemoryUsageSetting memoryUsage)
+      throws IOException {
+    PDEncryption encryption = doc.getEncryption();
+    if (threads <= 1
+        || doc.isAllSecurityToBeRemoved()
+        || encryption == null
+        || !encryption.hasSecurityHandler()
+        || !(encryption.getSecurityHandler() instanceof EncryptingHandler)) {
+      doc.save(out);
+      return;
+    }
+
+    EncryptingHandler handler = (EncryptingHandler) encryption.getSecurityHandler();
+    long startTime = System.nanoTime();
+
+    // Numbers the objects like the real save, which also prepares the encryption dictionary
+    NumberingWriter numbering = new NumberingWriter();
+    numbering.write(doc);
+
+    Map<COSStream, COSObjectKey> streams = new IdentityHashMap<>();
+    for (Map.Entry<COSBase, COSObjectKey> entry : numbering.getObjectKeys().entrySet()) {
+      if (entry.getKey() instanceof COSStream) {
+        streams.put((COSStream) entry.getKey(), entry.getValue());
+      }
+    }
+
+    new StreamCrypto(
+            threads,
+            doc.getEncryption(),
+            doc.getDocument().getDocumentID(),
+            handler.password,
+            memoryUsage)
+        .run(streams, true);
+    Metrics.timer("encrypt_streams").stop(startTime);
+
+    handler.encrypted = streams;
+    try {
+      doc.save(out);
+    } finally {
+      handler.encrypted = null;
+    }
+  }
+
+  /**
+   * Loads the document like PDDocument.load, and decrypts its streams with the given number of
+   * threads. The memory setting is the one of the scratch file.
+   */
+  public static PDDocument load(
+      RandomAccessRead source,
+      String password,
+      ScratchFile scratchFile,
+      MemoryUsageSetting memoryUsage,
+      int threads)
+      throws IOException {
+    Parser parser = new Parser(source, password, scratchFile);
+    parser.parse();
+
+    if (parser.handler != null && !parser.handler.deferred.isEmpty()) {
+      long startTime = System.nanoTime();
+      new StreamCrypto(
+              threads, parser.getEncryption(), parser.getDocumentId(), password, memoryUsage)
+          .run(parser.handler.deferred, false);
+      Metrics.timer("decrypt_streams").stop(startTime);
+    }
+
+    return parser.getPDDocument();
+  }
+
+  private void run(Map<COSStream, COSObjectKey> streams, boolean isEncrypt) throws IOException {
+    List<Map.Entry<COSStream, COSObjectKey>> entries = new ArrayList<>(streams.entrySet());
+    AtomicInteger nextStream = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> workers = new ArrayList<>();
+
+    for (int i = 0; i < threads; i++) {
+      workers.add(
+          executor.submit(
+              () -> {
+                // The handlers aren't thread-safe, and a stream of the worker's own scratch file
+                // holds the data while it is encrypted or decrypted
+                SecurityHandler handler = createHandler();
+                ScratchFile scratchFile =
+                    new ScratchFile(memoryUsage.getPartitionedCopy(threads));
+                try {
+                  for (int index = nextStream.getAndIncrement();
+                      index < entries.size();
+                      index = nextStream.getAndIncrement()) {
+                    Progress.object("Stream", index + 1);
+                    Map.Entry<COSStream, COSObjectKey> entry = entries.get(index);
+                    crypt(handler, scratchFile, entry.getKey(), entry.getValue(), isEncrypt);
+                  }
+                } finally {
+                  scratchFile.close();
+                }
+                return null;
+              }));
+    }
+
+    String action = isEncrypt ? "encrypt" : "decrypt";
+    try {
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("The threads to " + action + " the streams were interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException(
+          "Failed to " + action + " the streams: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private SecurityHandler createHandler() throws IOException {
+    StandardSecurityHandler handler = new StandardSecurityHandler();
+    DecryptionMaterial material = new StandardDecryptionMaterial(password);
+    handler.prepareForDecryption(encryption, documentId, material);
+    return handler;
+  }
+
+  private void crypt(
+      SecurityHandler handler,
+      ScratchFile scratchFile,
+      COSStream stream,
+      COSObjectKey key,
+      boolean isEncrypt)
+      throws IOException {
+    // The data is copied in chunks, so only the handler itself reads the stream into the heap
+    try (COSStream copy = new COSStream(scratchFile)) {
+      synchronized (scratchLock) {
+        copy(stream, copy);
+      }
+
+      if (isEncrypt) {
+        handler.encryptStream(copy, key.getNumber(), key.getGeneration());
+      } else {
+        // The copy shares the values of the dictionary, so its strings are decrypted as well
+        copy.addAll(stream);
+        handler.decryptStream(copy, key.getNumber(), key.getGeneration());
+      }
+
+      long length;
+      synchronized (scratchLock) {
+        length = copy(copy, stream);
+      }
+      Metrics.count("crypted_stream_bytes", length);
+    }
+  }
+
+  private static long copy(COSStream source, COSStream target) throws IOException {
+    try (InputStream in = source.createRawInputStream();
+        OutputStream out = target.createRawOutputStream()) {
+      return IOUtils.copy(in, out);
+    }
+  }
+
+  /** Skips the streams which were already encrypted. */
+  private static class EncryptingHandler extends SecurityHandler {
+
+    private final SecurityHandler handler;
+    private final String password;
+    private Map<COSStream, COSObjectKey> encrypted;
+
+    private EncryptingHandler(SecurityHandler handler, String password) {
+      this.handler = handler;
+      this.password = password;
+    }
+
+    @Override
+    public void prepareDocumentForEncryption(PDDocument doc) throws IOException {
+      // The streams were encrypted with the prepared key, which a second call would replace
+      if (encrypted == null) {
+        handler.prepareDocumentForEncryption(doc);
+      }
+    }
+
+    @Override
+    public void prepareForDecryption(
+        PDEncryption encryption, COSArray documentIDArray, DecryptionMaterial material)
+        throws IOException {
+      handler.prepareForDecryption(encryption, documentIDArray, material);
+    }
+
+    @Override
+    public void encryptStream(COSStream stream, long objNum, int genNum) throws IOException {
+      COSObjectKey key = (encrypted == null) ? null : encrypted.get(stream);
+      if (key == null) {
+        handler.encryptStream(stream, objNum, genNum);
+      } else if (key.getNumber() != objNum || key.getGeneration() != genNum) {
+        throw new IOException(
+            "Object " + objNum + " was encrypted as object " + key.getNumber() + ".");
+      }
+    }
+
+    @Override
+    public void encryptString(COSString string, long objNum, int genNum) throws IOException {
+      handler.encryptString(string, objNum, genNum);
+    }
+
+    @Override
+    public boolean hasProtectionPolicy() {
+      return handler.hasProtectionPolicy();
+    }
+  }
+
+  /** Goes through the document like a save, without encrypting or writing anything. */
+  private static class NumberingWriter extends COSWriter {
+
+    private NumberingWriter() {
+      super(
+          new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+          });
+    }
+
+    @Override
+    public Object visitFromStream(COSStream stream) throws IOException {
+      // Only the references of the dictionary number other objects
+      return visitFromDictionary(stream);
+    }
+
+    @Override
+    public Object visitFromString(COSString string) {
+      return null;
+    }
+  }
+
+  /** Leaves the streams encrypted while parsing, except the ones the parser has to read. */
+  private static class DeferringHandler extends SecurityHandler {
+
+    private final SecurityHandler handler;
+    private final Map<COSStream, COSObjectKey> deferred = new IdentityHashMap<>();
+
+    private DeferringHandler(SecurityHandler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void decryptStream(COSStream stream, long objNum, long genNum) throws IOException {
+      if (!isDeferrable(stream)) {
+        handler.decryptStream(stream, objNum, genNum);
+        return;
+      }
+
+      deferred.put(stream, new COSObjectKey(objNum, (int) genNum));
+    }
+
+    @Override
+    public void decrypt(COSBase object, long objNum, long genNum) throws IOException {
+      handler.decrypt(object, objNum, genNum);
+    }
+
+    private static boolean isDeferrable(COSStream stream) {
+      // Object streams are read by the parser, metadata and xref streams may not be encrypted
+      COSName type = stream.getCOSName(COSName.TYPE);
+      return !COSName.OBJ_STM.equals(type)
+          && !COSName.METADATA.equals(type)
+          && !COSName.XREF.equals(type);
+    }
+
+    @Override
+    public void prepareDocumentForEncryption(PDDocument doc) throws IOException {
+      handler.prepareDocumentForEncryption(doc);
+    }
+
+    @Override
+    public void prepareForDecryption(
+        PDEncryption encryption, COSArray documentIDArray, DecryptionMaterial material)
+        throws IOException {
+      handler.prepareForDecryption(encryption, documentIDArray, material);
+    }
+
+    @Override
+    public boolean hasProtectionPolicy() {
+      return handler.hasProtectionPolicy();
+    }
+  }
+
+  private static class Parser extends PDFParser {
+
+    private DeferringHandler handler;
+
+    private Parser(RandomAccessRead source, String password, ScratchFile scratchFile)
+        throws IOException {
+      super(source, password, scratchFile);
+    }
+
+    @Override
+    protected COSBase parseObjectDynamically(
+        long objNr, int objGenNr, boolean requireExistingNotCompressedObj) throws IOException {
+      // The security handler is ready before the first encrypted object is parsed
+      if (handler == null && securityHandler instanceof StandardSecurityHandler) {
+        handler = new DeferringHandler(securityHandler);
+        securityHandler = handler;
+      }
+      return super.parseObjectDynamically(objNr, objGenNr, requireExistingNotCompressedObj);
+    }
+
+    private COSArray getDocumentId() {
+      return document.getDocumentID();
+    }
+  }
+}
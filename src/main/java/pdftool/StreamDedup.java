@@ -0,0 +1,246 @@
+package pdftool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Replaces streams with the same dictionary and the same data by one shared stream. Merged
+ * documents often embed the same fonts, images and ICC profiles once for every source file.
+ */
+public class StreamDedup {
+
+  private final Map<COSStream, String> hashes = new IdentityHashMap<>();
+  private final Map<String, COSStream> sharedStreams = new HashMap<>();
+  // Streams being hashed, to find streams which refer to themselves
+  private final Set<COSBase> hashing = Collections.newSetFromMap(new IdentityHashMap<>());
+  // Objects that can only be compared by identity
+  private final Map<COSBase, Integer> objectIds = new IdentityHashMap<>();
+  private int duplicateNumber;
+  private long savedBytes;
+
+  /** Shares identical streams of the document and prints how much was saved. */
+  public static void dedup(PDDocument doc) throws IOException {
+    Progress.print("Start to remove duplicate streams...");
+    long startTime = System.nanoTime();
+
+    StreamDedup dedup = new StreamDedup();
+    dedup.replaceStreams(doc.getDocument().getTrailer());
+
+    Metrics.timer("dedup").stop(startTime);
+    Metrics.count("dedup_bytes_saved", dedup.savedBytes);
+    Progress.print(
+        String.format(
+            "Removed %d duplicate streams (%.1f MB) in %.2f s",
+            dedup.duplicateNumber,
+            dedup.savedBytes / (1024.0 * 1024.0),
+            (System.nanoTime() - startTime) / 1e9));
+  }
+
+  private void replaceStreams(COSBase root) throws IOException {
+    Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<COSBase> pending = new ArrayList<>();
+    pending.add(root);
+
+    // Walk the whole object graph once, without recursion, as page trees can be deep
+    while (!pending.isEmpty()) {
+      COSBase object = pending.remove(pending.size() - 1);
+      if (!visited.add(object)) {
+        continue;
+      }
+
+      if (object instanceof COSDictionary) {
+        COSDictionary dict = (COSDictionary) object;
+        for (COSName key : new ArrayList<>(dict.keySet())) {
+          COSBase value = resolve(dict.getItem(key));
+          if (value instanceof COSStream) {
+            COSStream shared = share((COSStream) value);
+            if (shared != value) {
+              dict.setItem(key, shared);
+            }
+            value = shared;
+          }
+          addChild(pending, value);
+        }
+
+      } else if (object instanceof COSArray) {
+        COSArray array = (COSArray) object;
+        for (int i = 0; i < array.size(); i++) {
+          COSBase value = resolve(array.get(i));
+          if (value instanceof COSStream) {
+            COSStream shared = share((COSStream) value);
+            if (shared != value) {
+              array.set(i, shared);
+            }
+            value = shared;
+          }
+          addChild(pending, value);
+        }
+      }
+    }
+  }
+
+  private static void addChild(List<COSBase> pending, COSBase value) {
+    if (value instanceof COSDictionary || value instanceof COSArray) {
+      pending.add(value);
+    }
+  }
+
+  private COSStream share(COSStream stream) throws IOException {
+    String hash = hash(stream);
+    COSStream shared = sharedStreams.putIfAbsent(hash, stream);
+
+    if (shared == null) {
+      return stream;
+    }
+
+    if (shared != stream) {
+      duplicateNumber++;
+      savedBytes += stream.getLength();
+    }
+
+    return shared;
+  }
+
+  private String hash(COSStream stream) throws IOException {
+    String hash = hashes.get(stream);
+    if (hash != null) {
+      return hash;
+    }
+
+    if (!hashing.add(stream)) {
+      // A stream that refers to itself can't be compared by its content
+      return "#" + id(stream);
+    }
+
+    try {
+      StringBuilder dictionary = new StringBuilder();
+      describeDictionary(stream, dictionary);
+
+      MessageDigest streamDigest = newDigest();
+      streamDigest.update(dictionary.toString().getBytes(StandardCharsets.UTF_8));
+      try (InputStream data = stream.createRawInputStream()) {
+        byte[] buffer = new byte[64 * 1024];
+        for (int n = data.read(buffer); n != -1; n = data.read(buffer)) {
+          streamDigest.update(buffer, 0, n);
+        }
+      }
+
+      hash = toHex(streamDigest.digest());
+    } finally {
+      hashing.remove(stream);
+    }
+
+    hashes.put(stream, hash);
+    return hash;
+  }
+
+  /** Writes the objects a stream dictionary refers to, with the hash of every nested stream. */
+  private void describe(COSBase object, StringBuilder text) throws IOException {
+    object = resolve(object);
+
+    if (object instanceof COSStream) {
+      text.append("(stream ").append(hash((COSStream) object)).append(')');
+
+    } else if (object instanceof COSDictionary) {
+      if (!hashing.add(object)) {
+        text.append("(cycle ").append(id(object)).append(')');
+        return;
+      }
+
+      try {
+        describeDictionary((COSDictionary) object, text);
+      } finally {
+        hashing.remove(object);
+      }
+
+    } else if (object instanceof COSArray) {
+      text.append('[');
+      for (COSBase item : (COSArray) object) {
+        describe(item, text);
+        text.append(' ');
+      }
+      text.append(']');
+
+    } else if (object instanceof COSName) {
+      text.append('/').append(((COSName) object).getName());
+
+    } else if (object instanceof COSString) {
+      text.append('<').append(((COSString) object).toHexString()).append('>');
+
+    } else if (object instanceof COSNumber || object instanceof COSBoolean) {
+      text.append(object.toString());
+
+    } else if (object == null || object instanceof COSNull) {
+      text.append("null");
+
+    } else {
+      text.append("(object ").append(id(object)).append(')');
+    }
+  }
+
+  private void describeDictionary(COSDictionary dict, StringBuilder text) throws IOException {
+    List<COSName> keys = new ArrayList<>(dict.keySet());
+    keys.sort((a, b) -> a.getName().compareTo(b.getName()));
+
+    text.append("<<");
+    for (COSName key : keys) {
+      text.append('/').append(key.getName()).append(' ');
+
+      if (key.equals(COSName.PARENT) || key.equals(COSName.P)) {
+        // Links back to the page tree would pull in the whole document, so they only match if
+        // they are the same object
+        text.append("(object ").append(id(resolve(dict.getItem(key)))).append(')');
+      } else if (!(dict instanceof COSStream && key.equals(COSName.LENGTH))) {
+        // The length of a stream belongs to the data, which is compared as it is
+        describe(dict.getItem(key), text);
+      }
+      text.append(' ');
+    }
+    text.append(">>");
+  }
+
+  private int id(COSBase object) {
+    return objectIds.computeIfAbsent(object, key -> objectIds.size());
+  }
+
+  private static COSBase resolve(COSBase object) {
+    return (object instanceof COSObject) ? ((COSObject) object).getObject() : object;
+  }
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 isn't available", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,125 @@
+package pdftool;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * Creates small images of the first page. The thumbnail embedded in the page is used if there is
+ * one, otherwise the page is rendered at the thumbnail size with subsampled images. With a cache,
+ * a file is only opened the first time its thumbnail is asked for.
+ */
+public class Thumbnails {
+
+  private static final COSName THUMB = COSName.getPDFName("Thumb");
+
+  private final DiskCache cache;
+
+  /** The cache can be null to create every thumbnail again. */
+  public Thumbnails(DiskCache cache) {
+    this.cache = cache;
+  }
+
+  /** Returns the thumbnail of the first page, with the given size as its longer side. */
+  public BufferedImage getThumbnail(InputFile input, int size) throws IOException {
+    String key = null;
+
+    if (cache != null) {
+      key = "thumbnail:" + DiskCache.fingerprintFile(input.getFile()) + ":" + size;
+      byte[] data = cache.get(key);
+      if (data != null) {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image != null) {
+          return image;
+        }
+      }
+    }
+
+    BufferedImage thumbnail;
+    try (PDDocument doc = input.load()) {
+      thumbnail = createThumbnail(doc, 0, size);
+    }
+
+    if (cache != null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ImageIO.write(thumbnail, "png", bytes);
+      cache.put(key, bytes.toByteArray());
+    }
+
+    return thumbnail;
+  }
+
+  public static BufferedImage createThumbnail(PDDocument doc, int pageIndex, int size)
+      throws IOException {
+    long startTime = System.nanoTime();
+    PDPage page = doc.getPage(pageIndex);
+    BufferedImage image = getEmbeddedThumbnail(page, size);
+
+    if (image == null) {
+      PDRectangle box = page.getCropBox();
+      float scale = size / Math.max(box.getWidth(), box.getHeight());
+
+      // Images are drawn from every n-th pixel, as the page is much smaller than they are
+      PDFRenderer renderer = new PDFRenderer(doc);
+      renderer.setSubsamplingAllowed(true);
+      image = renderer.renderImage(pageIndex, scale, ImageType.RGB);
+    }
+
+    image = fit(image, size);
+    Metrics.timer("thumbnail").stop(startTime);
+    return image;
+  }
+
+  private static BufferedImage getEmbeddedThumbnail(PDPage page, int size) {
+    COSStream thumb = page.getCOSObject().getCOSStream(THUMB);
+    if (thumb == null) {
+      return null;
+    }
+
+    try {
+      BufferedImage image = PDImageXObject.createThumbnail(thumb).getImage();
+
+      // Embedded thumbnails are small, so a much bigger thumbnail is rendered instead
+      if (Math.max(image.getWidth(), image.getHeight()) * 2 < size) {
+        return null;
+      }
+
+      return image;
+    } catch (IOException e) {
+      // A broken thumbnail is only a reason to render the page
+      return null;
+    }
+  }
+
+  private static BufferedImage fit(BufferedImage image, int size) {
+    int longerSide = Math.max(image.getWidth(), image.getHeight());
+    if (longerSide == size) {
+      return image;
+    }
+
+    double scale = (double) size / longerSide;
+    int width = Math.max((int) Math.round(image.getWidth() * scale), 1);
+    int height = Math.max((int) Math.round(image.getHeight() * scale), 1);
+
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = scaled.createGraphics();
+    g.setRenderingHint(
+        RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.drawImage(image, 0, 0, width, height, null);
+    g.dispose();
+
+    return scaled;
+  }
+}
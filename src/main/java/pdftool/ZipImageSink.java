@@ -0,0 +1,103 @@
+package pdftool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipImageSink implements ImageSink {
+
+  private final ZipOutputStream zos;
+  // Images encoded by other threads wait here until every image before them is written
+  private final Map<Integer, ZipEntry> pendingEntries = new TreeMap<>();
+  private final Map<Integer, byte[]> pendingData = new TreeMap<>();
+  private final int window;
+  private int nextIndex;
+  private Throwable failure;
+
+  public ZipImageSink(String outputFile) throws IOException {
+    this(outputFile, 1);
+  }
+
+  /**
+   * The writer of an image blocks while the image is the given number of images or more ahead of
+   * the next one to write, so a slow image doesn't keep all the images after it on the heap.
+   */
+  public ZipImageSink(String outputFile, int window) throws IOException {
+    Progress.print("Start to zip files...");
+    zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+    this.window = Math.max(window, 1);
+  }
+
+  @Override
+  public synchronized void write(int index, String fileName, byte[] data) throws IOException {
+    while (failure == null && index >= nextIndex + window) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Waiting to write image " + (index + 1) + " was interrupted");
+      }
+    }
+
+    if (failure != null) {
+      String message = (failure.getMessage() == null) ? failure.toString() : failure.getMessage();
+      throw new IOException(message, failure);
+    }
+
+    String name = new File(fileName).getName();
+    ZipEntry entry = new ZipEntry(name);
+
+    if (isCompressed(name)) {
+      // Deflating PNG, JPEG, JPEG 2000 or GIF data again only costs time, so store it as it is
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+      entry.setCrc(crc.getValue());
+    }
+
+    Metrics.count("bytes_written", data.length);
+    pendingEntries.put(index, entry);
+    pendingData.put(index, data);
+
+    while (pendingEntries.containsKey(nextIndex)) {
+      Progress.log("Handle Image " + (nextIndex + 1));
+      zos.putNextEntry(pendingEntries.remove(nextIndex));
+      zos.write(pendingData.remove(nextIndex));
+      zos.closeEntry();
+      nextIndex++;
+    }
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void abort(Throwable failure) {
+    if (this.failure == null) {
+      this.failure = failure;
+    }
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    zos.close();
+  }
+
+  private static boolean isCompressed(String name) {
+    name = name.toLowerCase();
+    return name.endsWith(".png")
+        || name.endsWith(".jpg")
+        || name.endsWith(".jpeg")
+        || name.endsWith(".gif")
+        || name.endsWith(".jp2");
+  }
+}
@@ -0,0 +1,85 @@
+package pdftool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.jupiter.api.Test;
+
+public class BandRendererTest {
+
+  @Test
+  public void bandsMatchFullPageRendering() throws IOException {
+    try (PDDocument doc = createDocument()) {
+      PDFRenderer renderer = new PDFRenderer(doc);
+      PDPage page = doc.getPage(0);
+
+      for (ImageType imageType :
+          new ImageType[] {ImageType.RGB, ImageType.GRAY, ImageType.BINARY}) {
+        BufferedImage expected = renderer.renderImageWithDPI(0, 100, imageType);
+        BufferedImage raster = new PageRaster(renderer, imageType).render(page, 0, 100);
+        assertSamePixels(expected, raster, imageType + " PageRaster");
+
+        for (int bandHeight : new int[] {1, 7, 37, 1000}) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          new BandRenderer(
+                  renderer, bandHeight, imageType, new PngEncoder(4, PngEncoder.Filter.ADAPTIVE))
+              .render(page, 0, 100, out);
+          BufferedImage banded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+          assertSamePixels(expected, banded, imageType + " bands of " + bandHeight);
+        }
+      }
+    }
+  }
+
+  private static PDDocument createDocument() throws IOException {
+    PDDocument doc = new PDDocument();
+    PDPage page = new PDPage(new PDRectangle(200, 200));
+    doc.addPage(page);
+
+    try (PDPageContentStream stream = new PDPageContentStream(doc, page)) {
+      stream.setNonStrokingColor(200, 0, 200);
+      stream.addRect(10, 10, 80, 80);
+      stream.fill();
+
+      stream.setNonStrokingColor(0, 0, 0);
+      stream.moveTo(100, 100);
+      stream.lineTo(190, 130);
+      stream.lineTo(120, 190);
+      stream.fill();
+
+      stream.beginText();
+      stream.setFont(PDType1Font.HELVETICA, 14);
+      stream.newLineAtOffset(20, 160);
+      stream.showText("Bands");
+      stream.endText();
+    }
+
+    return doc;
+  }
+
+  private static void assertSamePixels(BufferedImage expected, BufferedImage actual, String name) {
+    assertEquals(expected.getWidth(), actual.getWidth(), name + " width");
+    assertEquals(expected.getHeight(), actual.getHeight(), name + " height");
+
+    int differentPixels = 0;
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+          differentPixels++;
+        }
+      }
+    }
+    assertEquals(0, differentPixels, name + " different pixels");
+  }
+}
@@ -0,0 +1,261 @@
+package pdftool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.junit.jupiter.api.Test;
+
+/** Follows the offsets of a linearized file like a viewer reading it over range requests. */
+public class LinearizerTest {
+
+  private static final Pattern LINEARIZATION_DICTIONARY =
+      Pattern.compile(
+          "(\\d+) 0 obj\n<< /Linearized 1 /L (\\d+) /H \\[ (\\d+) (\\d+) \\] /O (\\d+) /E (\\d+) "
+              + "/N (\\d+) /T (\\d+) >>\nendobj\n");
+  private static final Pattern XREF_SECTION = Pattern.compile("xref\n(\\d+) (\\d+)\n");
+  private static final Pattern XREF_ENTRY = Pattern.compile("(\\d{10}) (\\d{5}) ([nf])\r\n");
+  private static final Pattern OBJECT = Pattern.compile("(\\d+) 0 obj\n");
+  private static final Pattern HINT_STREAM =
+      Pattern.compile("\\d+ 0 obj\n<< /Length (\\d+) /S (\\d+) >>\nstream\n");
+  private static final Pattern PAGE = Pattern.compile("/Type /Page\\b");
+  private static final Pattern STARTXREF = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$");
+
+  private static final int PAGE_NUMBER = 4;
+
+  @Test
+  public void linearizedFileCanBeFollowed() throws IOException {
+    byte[] file;
+    try (PDDocument doc = createDocument()) {
+      file = linearize(doc);
+    }
+    String text = new String(file, StandardCharsets.ISO_8859_1);
+
+    assertTrue(text.startsWith("%PDF-1."), "header");
+    int dictionaryOffset = text.indexOf('\n', text.indexOf('\n') + 1) + 1;
+    Matcher dictionary = lookingAt(LINEARIZATION_DICTIONARY, text, dictionaryOffset);
+    int linearizedNumber = Integer.parseInt(dictionary.group(1));
+    long length = Long.parseLong(dictionary.group(2));
+    int hintOffset = Integer.parseInt(dictionary.group(3));
+    int hintLength = Integer.parseInt(dictionary.group(4));
+    int firstPageNumber = Integer.parseInt(dictionary.group(5));
+    int firstPageEnd = Integer.parseInt(dictionary.group(6));
+    int mainXrefEntries = Integer.parseInt(dictionary.group(8));
+
+    // /L is the file length and /N the number of pages
+    assertEquals(file.length, length, "/L");
+    assertEquals(PAGE_NUMBER, Integer.parseInt(dictionary.group(7)), "/N");
+
+    // The first page xref section follows the dictionary, and the last startxref points to it
+    int firstXrefOffset = dictionary.end();
+    Matcher startxref = STARTXREF.matcher(text);
+    assertTrue(startxref.find(), "startxref");
+    assertEquals(firstXrefOffset, Integer.parseInt(startxref.group(1)), "startxref");
+    int[] firstXref = checkXrefSection(text, firstXrefOffset);
+    assertEquals(linearizedNumber, firstXref[0], "first number of the first page xref section");
+    assertTrue(text.startsWith("trailer\n", firstXref[2]), "first page trailer");
+
+    // /T is the end of the first line of the main xref section, whose trailer has no /Prev
+    int mainXrefOffset = text.lastIndexOf("xref\n0 ");
+    Matcher mainSection = lookingAt(XREF_SECTION, text, mainXrefOffset);
+    assertEquals(mainSection.end() - 1, mainXrefEntries, "/T");
+    int[] mainXref = checkXrefSection(text, mainXrefOffset);
+    assertEquals(linearizedNumber, mainXref[1], "objects of the main xref section");
+    Matcher prev = Pattern.compile("/Prev (\\d+)").matcher(text);
+    assertTrue(prev.find(firstXref[2]), "/Prev of the first page trailer");
+    assertEquals(mainXrefOffset, Integer.parseInt(prev.group(1)), "/Prev");
+
+    // /H points to the hint stream, which is the third object of the first page section
+    Matcher hintStream = lookingAt(HINT_STREAM, text, hintOffset);
+    assertEquals(linearizedNumber + 2, objectNumber(text, hintOffset), "hint stream number");
+    assertTrue(text.startsWith("endobj\n", hintOffset + hintLength - 7), "hint stream length");
+    int dataLength = Integer.parseInt(hintStream.group(1));
+    byte[] hints = new byte[dataLength];
+    System.arraycopy(file, hintStream.end(), hints, 0, dataLength);
+    BitReader bits = new BitReader(hints);
+
+    // Page offset hint table header, Table F.3
+    long minObjects = bits.read(32);
+    long firstPageStart = bits.read(32);
+    int objectBits = (int) bits.read(16);
+    long minLength = bits.read(32);
+    int lengthBits = (int) bits.read(16);
+
+    long[] objectCounts = new long[PAGE_NUMBER], lengths = new long[PAGE_NUMBER];
+    bits.seek(36);
+    for (int i = 0; i < PAGE_NUMBER; i++) {
+      objectCounts[i] = minObjects + bits.read(objectBits);
+    }
+    bits.align();
+    for (int i = 0; i < PAGE_NUMBER; i++) {
+      lengths[i] = minLength + bits.read(lengthBits);
+    }
+
+    // /O is the first page, which starts where the page offset hint table says
+    long pageStart = firstPageStart + hintLength;
+    assertEquals(firstPageNumber, objectNumber(text, (int) pageStart), "/O");
+    // The objects of the other pages are numbered from 1 on
+    long pageNumber = 1;
+    for (int i = 0; i < PAGE_NUMBER; i++) {
+      assertTrue(PAGE.matcher(objectText(text, (int) pageStart)).find(), "page " + (i + 1));
+      if (i > 0) {
+        assertEquals(pageNumber, objectNumber(text, (int) pageStart), "number of page " + (i + 1));
+        pageNumber += objectCounts[i];
+      }
+
+      // The page's objects follow it one after the other
+      int offset = (int) pageStart;
+      for (int j = 0; j < objectCounts[i]; j++) {
+        offset = text.indexOf("endobj\n", offset) + 7;
+      }
+      assertEquals(pageStart + lengths[i], offset, "length of page " + (i + 1));
+
+      if (i == 0) {
+        // /E is the end of the first page section
+        assertEquals(firstPageEnd, offset, "/E");
+      }
+      pageStart = offset;
+    }
+
+    // Shared object hint table, Table F.5, at /S in the hint stream
+    bits.seek(Integer.parseInt(hintStream.group(2)));
+    int firstSharedNumber = (int) bits.read(32);
+    long firstSharedOffset = bits.read(32) + hintLength;
+    long firstPageGroups = bits.read(32);
+    long groups = bits.read(32);
+    assertEquals(objectCounts[0], firstPageGroups, "shared groups of the first page");
+    assertTrue(groups > firstPageGroups, "objects shared by the other pages");
+    assertEquals(pageStart, firstSharedOffset, "location of the first shared object");
+    assertEquals(firstSharedNumber, objectNumber(text, (int) firstSharedOffset), "shared object");
+
+    // PDFBox reads it like the original
+    try (PDDocument original = createDocument();
+        PDDocument linearized = PDDocument.load(file)) {
+      assertEquals(PAGE_NUMBER, linearized.getNumberOfPages());
+      assertEquals("Linearized", linearized.getDocumentInformation().getTitle());
+      PDFTextStripper stripper = new PDFTextStripper();
+      assertEquals(stripper.getText(original), stripper.getText(linearized));
+    }
+  }
+
+  @Test
+  public void documentWithoutPagesIsRejected() throws IOException {
+    try (PDDocument doc = new PDDocument()) {
+      assertThrows(IOException.class, () -> linearize(doc));
+    }
+  }
+
+  private static byte[] linearize(PDDocument doc) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Linearizer.save(doc, out);
+    return out.toByteArray();
+  }
+
+  /** The pages share the font, and the last three pages an image. */
+  private static PDDocument createDocument() throws IOException {
+    PDDocument doc = new PDDocument();
+    doc.getDocumentInformation().setTitle("Linearized");
+
+    BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+    PDImageXObject sharedImage = LosslessFactory.createFromImage(doc, image);
+
+    for (int i = 0; i < PAGE_NUMBER; i++) {
+      PDPage page = new PDPage(PDRectangle.A4);
+      doc.addPage(page);
+
+      try (PDPageContentStream stream = new PDPageContentStream(doc, page)) {
+        stream.beginText();
+        stream.setFont(PDType1Font.HELVETICA, 12);
+        stream.newLineAtOffset(50, 700);
+        stream.showText("Page " + (i + 1));
+        stream.endText();
+
+        if (i > 0) {
+          stream.drawImage(sharedImage, 50, 50);
+        }
+      }
+    }
+
+    return doc;
+  }
+
+  /**
+   * Checks that every entry of the xref section points to its object, and returns the first
+   * number, the number of entries and the end of the section.
+   */
+  private static int[] checkXrefSection(String text, int offset) {
+    Matcher section = lookingAt(XREF_SECTION, text, offset);
+    int first = Integer.parseInt(section.group(1)), count = Integer.parseInt(section.group(2));
+    int end = section.end();
+
+    for (int i = 0; i < count; i++) {
+      Matcher entry = lookingAt(XREF_ENTRY, text, end);
+      end = entry.end();
+      if (entry.group(3).equals("n")) {
+        int objectOffset = Integer.parseInt(entry.group(1));
+        assertEquals(first + i, objectNumber(text, objectOffset), "object at " + objectOffset);
+      }
+    }
+
+    return new int[] {first, count, end};
+  }
+
+  private static Matcher lookingAt(Pattern pattern, String text, int offset) {
+    Matcher matcher = pattern.matcher(text);
+    matcher.region(offset, text.length());
+    assertTrue(matcher.lookingAt(), pattern + " at " + offset);
+    return matcher;
+  }
+
+  private static int objectNumber(String text, int offset) {
+    return Integer.parseInt(lookingAt(OBJECT, text, offset).group(1));
+  }
+
+  private static String objectText(String text, int offset) {
+    return text.substring(offset, text.indexOf("endobj\n", offset));
+  }
+
+  /** Reads numbers with the given number of bits, the highest bit first. */
+  private static class BitReader {
+
+    private final byte[] data;
+    private long position;
+
+    BitReader(byte[] data) {
+      this.data = data;
+    }
+
+    long read(int bits) {
+      long value = 0;
+      for (int i = 0; i < bits; i++) {
+        int bit = (data[(int) (position >> 3)] >> (7 - (position & 7))) & 1;
+        value = (value << 1) | bit;
+        position++;
+      }
+      return value;
+    }
+
+    /** Moves to the given byte. */
+    void seek(int offset) {
+      position = offset * 8L;
+    }
+
+    void align() {
+      position = (position + 7) & ~7L;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package pdftool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.Test;
+
+/** Runs step sequences on a small document and checks the saved result. */
+public class PDFPipelineTest {
+
+  @Test
+  public void removingPagesAfterSettingPasswordKeepsEncryption() throws IOException {
+    File input = createDocument(3);
+    File output = File.createTempFile("pipeline", ".pdf");
+    try {
+      PDFPipeline.parse(128, "set-password=secret", "remove-pages=2")
+          .run(new InputFile(input, null), output.getAbsolutePath());
+
+      try (PDDocument doc = PDDocument.load(output, "secret")) {
+        assertTrue(doc.isEncrypted(), "encrypted");
+        assertEquals(2, doc.getNumberOfPages(), "pages");
+      }
+    } finally {
+      input.delete();
+      output.delete();
+    }
+  }
+
+  private static File createDocument(int pageNumber) throws IOException {
+    File file = File.createTempFile("pipeline", ".pdf");
+    try (PDDocument doc = new PDDocument()) {
+      for (int i = 0; i < pageNumber; i++) {
+        doc.addPage(new PDPage());
+      }
+      doc.save(file);
+    }
+    return file;
+  }
+}